@@ -0,0 +1,147 @@
+package sf.hrechko.cash;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import sf.hrechko.cash.UserDb.User;
+
+/*
+ * Операции со счётом на случайных пользователях и категориях: поиск, баланс,
+ * пополнение, списание и перевод. При durable=false БД только в памяти, при
+ * durable=true она открыта через init() во временном каталоге, и каждое
+ * изменение ждёт записи журнала (fsync) и Ledger.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class AccountBenchmark {
+
+    /* Случайные индексы выбираются заранее, чтобы не замерять Random */
+    @State(Scope.Thread)
+    public static class Cursor {
+	private static final int SIZE = 1 << 16;
+
+	private int[] users = new int[SIZE];
+	private int[] categories = new int[SIZE];
+	private int position = 0;
+
+	@Setup(Level.Trial)
+	public void setup(AccountBenchmark bench) {
+	    Random random = new Random(Thread.currentThread().getId());
+	    for (int i = 0; i < SIZE; ++i) {
+		users[i] = random.nextInt(bench.users.length);
+		categories[i] = random.nextInt(bench.incomes.length);
+	    }
+	}
+
+	int next() {
+	    position = (position + 1) & (SIZE - 1);
+	    return position;
+	}
+    }
+
+    @Param({ "1x2", "1000x50", "1000x500", "100000x50", "1000000x2" })
+    public String dataset;
+
+    @Param({ "false", "true" })
+    public boolean durable;
+
+    private UserDb db;
+    private File dir;
+    private String[] logins;
+    private User[] users;
+    private String[] incomes;
+    private String[] outcomes;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+	db = Datasets.build(dataset);
+	if (durable) {
+	    dir = Files.createTempDirectory("cash-bench").toFile();
+	    String path = new File(dir, "users.db").getPath();
+	    if (!db.export(new FileDb(path), UserDb.Format.BINARY))
+		throw new IllegalStateException("Ошибка сохранения " + path);
+	    db = new UserDb(path);
+	    db.setFormat(UserDb.Format.BINARY);
+	    if (!db.init())
+		throw new IllegalStateException("Ошибка открытия " + path);
+	}
+
+	logins = new String[Datasets.users(dataset)];
+	users = new User[logins.length];
+	for (int i = 0; i < logins.length; ++i) {
+	    logins[i] = Datasets.login(i);
+	    users[i] = db.getUser(logins[i]);
+	}
+	incomes = new String[Math.max(Datasets.categories(dataset) / 2, 1)];
+	outcomes = new String[incomes.length];
+	for (int i = 0; i < incomes.length; ++i) {
+	    incomes[i] = Datasets.income(i);
+	    outcomes[i] = Datasets.outcome(i);
+	}
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+	if (!durable)
+	    return;
+	db.close();
+	try (var files = Files.walk(dir.toPath())) {
+	    files.sorted((a, b) -> b.compareTo(a)).map(java.nio.file.Path::toFile).forEach(File::delete);
+	} catch (UncheckedIOException e) {
+	    throw e.getCause();
+	}
+    }
+
+    @Benchmark
+    public User getUser(Cursor cursor) {
+	return db.getUser(logins[cursor.users[cursor.next()]]);
+    }
+
+    @Benchmark
+    public long getBalance(Cursor cursor) {
+	return users[cursor.users[cursor.next()]].getBalance();
+    }
+
+    @Benchmark
+    public boolean setIncome(Cursor cursor) {
+	int i = cursor.next();
+	return users[cursor.users[i]].setIncome(db.new CashCategory(incomes[cursor.categories[i]], 100));
+    }
+
+    @Benchmark
+    public boolean setOutcome(Cursor cursor) {
+	int i = cursor.next();
+	return users[cursor.users[i]].setOutcome(db.new CashCategory(outcomes[cursor.categories[i]], 1));
+    }
+
+    /* Суммы доходов в наборе больше расходов, поэтому переводы по 1 копейке проходят */
+    @Benchmark
+    public boolean transfer(Cursor cursor) {
+	int i = cursor.next();
+	User from = users[cursor.users[i]];
+	User to = users[cursor.users[(i + 1) & (Cursor.SIZE - 1)]];
+	return from != to && db.transfer(from, to, 1);
+    }
+}
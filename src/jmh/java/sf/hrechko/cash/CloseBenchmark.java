@@ -0,0 +1,57 @@
+package sf.hrechko.cash;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * Закрытие БД после одного изменения: UserDb.close() сохраняет снимок (весь файл
+ * или изменённый шард с индексом), сбрасывает Ledger и удаляет сегменты журнала.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class CloseBenchmark {
+
+    @Param({ "1x2", "1000x50", "1000x500", "100000x50", "1000000x2" })
+    public String dataset;
+
+    @Param({ "JSON", "BINARY", "MMAP", "SHARDED" })
+    public Datasets.Engine engine;
+
+    private File path;
+    private UserDb db;
+
+    @Setup(Level.Trial)
+    public void prepare() {
+	path = Datasets.prepare(engine, dataset);
+    }
+
+    @Setup(Level.Invocation)
+    public void open() {
+	db = Datasets.open(engine, path);
+	if (!db.init())
+	    throw new IllegalStateException("Ошибка открытия " + path);
+	db.getUser(Datasets.login(0)).setIncome(db.new CashCategory("Пополнение", 1));
+    }
+
+    @Benchmark
+    public void close() {
+	db.close();
+    }
+}
@@ -0,0 +1,109 @@
+package sf.hrechko.cash;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.util.Random;
+
+/*
+ * Синтетические БД для бенчмарков. Набор данных задаётся строкой
+ * <пользователей>x<категорий>, например 1000x50: каждый пользователь кроме
+ * стандартных получает указанное число категорий, поровну доходов (Доход<n>) и
+ * расходов (Расход<n>). Суммы случайные, но доходы всегда больше расходов, а
+ * генератор инициализируется размером набора, поэтому данные повторяются.
+ *
+ * Файлы БД для замеров загрузки и сохранения готовятся один раз и хранятся в
+ * каталоге target/jmh-data (другой каталог - -Djmh.data=<каталог>).
+ */
+public final class Datasets {
+
+    public enum Engine {
+	JSON, BINARY, MMAP, SHARDED
+    }
+
+    private static final String READY_FILE = "ready";
+
+    private Datasets() {
+    }
+
+    static int users(String dataset) {
+	return Integer.parseInt(dataset.substring(0, dataset.indexOf('x')));
+    }
+
+    static int categories(String dataset) {
+	return Integer.parseInt(dataset.substring(dataset.indexOf('x') + 1));
+    }
+
+    static String login(int user) {
+	return "user" + user;
+    }
+
+    static String income(int category) {
+	return "Доход" + category;
+    }
+
+    static String outcome(int category) {
+	return "Расход" + category;
+    }
+
+    /* БД в памяти, без файла, журнала и Ledger */
+    static UserDb build(String dataset) {
+	int userNumber = users(dataset);
+	int categoryNumber = categories(dataset);
+	Random random = new Random(userNumber * 1000L + categoryNumber);
+	UserDb db = new UserDb("bench.db");
+	for (int i = 0; i < userNumber; ++i) {
+	    UserDb.User user = db.new User(login(i), "pswd");
+	    db.addUser(user);
+	    for (int j = 0; j < categoryNumber / 2; ++j) {
+		user.setIncome(db.new CashCategory(income(j), 100_000 + random.nextInt(10_000_000)));
+		user.setOutcome(db.new CashCategory(outcome(j), random.nextInt(100_000)));
+	    }
+	}
+	return db;
+    }
+
+    /* Файл (каталог для SHARDED) с набором данных в формате движка */
+    static File prepare(Engine engine, String dataset) {
+	File dir = new File(System.getProperty("jmh.data", "target/jmh-data"), engine + "-" + dataset);
+	File path = new File(dir, (engine == Engine.SHARDED) ? "users.d" : "users.db");
+	if (new File(dir, READY_FILE).exists())
+	    return path;
+
+	if (!dir.isDirectory() && !dir.mkdirs())
+	    throw new IllegalStateException("Ошибка создания каталога " + dir);
+	UserDb source = build(dataset);
+	boolean saved;
+	if (engine == Engine.SHARDED) {
+	    ShardedUserDb sharded = new ShardedUserDb(path.getPath());
+	    saved = sharded.init() && sharded.importUsers(source);
+	    sharded.close();
+	} else {
+	    UserDb.Format format = (engine == Engine.BINARY) ? UserDb.Format.BINARY : UserDb.Format.JSON;
+	    saved = source.export(new FileDb(path.getPath()), format);
+	}
+	if (!saved)
+	    throw new IllegalStateException("Ошибка сохранения набора " + dataset);
+
+	try {
+	    Files.createFile(new File(dir, READY_FILE).toPath());
+	} catch (IOException e) {
+	    throw new UncheckedIOException(e);
+	}
+	return path;
+    }
+
+    static UserDb open(Engine engine, File path) {
+	switch (engine) {
+	case SHARDED:
+	    return new ShardedUserDb(path.getPath());
+	case MMAP:
+	    return new UserDb(new MappedFileDb(path.getPath()));
+	default:
+	    UserDb db = new UserDb(path.getPath());
+	    db.setFormat((engine == Engine.BINARY) ? UserDb.Format.BINARY : UserDb.Format.JSON);
+	    return db;
+	}
+    }
+}
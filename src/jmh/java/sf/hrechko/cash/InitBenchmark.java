@@ -0,0 +1,59 @@
+package sf.hrechko.cash;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * Открытие БД: UserDb.init() с загрузкой файла (JSON - loadJson()) и пустым
+ * журналом. ShardedUserDb при открытии читает только индекс.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class InitBenchmark {
+
+    @Param({ "1x2", "1000x50", "1000x500", "100000x50", "1000000x2" })
+    public String dataset;
+
+    @Param({ "JSON", "BINARY", "MMAP", "SHARDED" })
+    public Datasets.Engine engine;
+
+    private File path;
+    private UserDb db;
+
+    @Setup(Level.Trial)
+    public void prepare() {
+	path = Datasets.prepare(engine, dataset);
+    }
+
+    @Benchmark
+    public UserDb init() {
+	db = Datasets.open(engine, path);
+	if (!db.init())
+	    throw new IllegalStateException("Ошибка открытия " + path);
+	return db;
+    }
+
+    /* Без изменений close() БД не сохраняет */
+    @TearDown(Level.Invocation)
+    public void close() {
+	db.close();
+    }
+}
@@ -1,10 +1,98 @@
 package sf.hrechko.cash;
 
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
 public class App {
     public static void main(String[] args) {
-	ConsoleUI cli = ConsoleUI.getCLI();
+	if (args.length > 0 && args[0].equals("convert")) {
+	    convert(args);
+	    return;
+	}
+	if (args.length > 0 && args[0].equals("import")) {
+	    importTransactions(args);
+	    return;
+	}
+	if (args.length > 0 && args[0].equals("script")) {
+	    runScript(args);
+	    return;
+	}
+	if (args.length > 0 && args[0].equals("generate")) {
+	    generate(args);
+	    return;
+	}
+	if (args.length > 0 && args[0].equals("load")) {
+	    runLoad(args);
+	    return;
+	}
+
+	boolean mapped = false;
+	boolean sharded = false;
+	int serverPort = -1;
+	int commitBatch = UserJournal.DEFAULT_MAX_BATCH;
+	long commitWaitMicros = 0;
+	UserDb.Format format = UserDb.Format.JSON;
+	for (String arg : args) {
+	    switch (arg) {
+	    case "--mmap":
+		mapped = true;
+		break;
+	    case "--binary":
+		format = UserDb.Format.BINARY;
+		break;
+	    case "--sharded":
+		sharded = true;
+		break;
+	    case "--server":
+		serverPort = ConsoleServer.DEFAULT_PORT;
+		break;
+	    default:
+		try {
+		    if (arg.startsWith("--server=")) {
+			serverPort = Integer.parseInt(arg.substring("--server=".length()));
+			break;
+		    }
+		    if (arg.startsWith("--commit-batch=")) {
+			commitBatch = Integer.parseInt(arg.substring("--commit-batch=".length()));
+			break;
+		    }
+		    if (arg.startsWith("--commit-wait=")) {
+			commitWaitMicros = Long.parseLong(arg.substring("--commit-wait=".length()));
+			break;
+		    }
+		} catch (NumberFormatException e) {
+		}
+		System.out.format("Неизвестный параметр %s\n", arg);
+	    }
+	}
+
+	UserDb userDb;
+	if (sharded) {
+	    userDb = new ShardedUserDb("users.d");
+	} else {
+	    userDb = new UserDb(mapped ? new MappedFileDb("users.db") : new FileDb("users.db"));
+	    userDb.setFormat(format);
+	}
+	userDb.setGroupCommit(commitBatch, commitWaitMicros);
+	userDb.getMetrics().register(sharded ? "users.d" : "users.db");
+
+	if (serverPort >= 0) {
+	    ConsoleServer server = new ConsoleServer(userDb, serverPort);
+	    Runtime.getRuntime().addShutdownHook(new Thread(server::stop));
+	    server.run();
+	    return;
+	}
 
-	if (!cli.connectToDb("users.db")) {
+	ConsoleUI cli = ConsoleUI.getCLI();
+	if (!cli.connectToDb(userDb)) {
 	    System.out.println("Ошибка подключения к БД пользователей!");
 	}
 
@@ -13,4 +101,135 @@ public class App {
 	} while (cli.input());
 	System.out.println("Приложение закрыто!");
     }
+
+    /* convert <исходный файл> <новый файл или каталог> <json|binary|sharded> */
+    private static void convert(String[] args) {
+	if (args.length != 4) {
+	    System.out.println("Использование: convert <исходный файл> <новый файл> <json|binary|sharded>");
+	    return;
+	}
+
+	boolean fromSharded = new File(args[1]).isDirectory();
+	UserDb userDb = fromSharded ? new ShardedUserDb(args[1]) : new UserDb(args[1]);
+	if (!userDb.init()) {
+	    System.out.format("Ошибка загрузки БД %s!\n", args[1]);
+	    return;
+	}
+
+	boolean converted;
+	if (args[3].equals("sharded")) {
+	    ShardedUserDb shardedDb = new ShardedUserDb(args[2]);
+	    converted = shardedDb.init() && shardedDb.importUsers(userDb);
+	    shardedDb.close();
+	} else {
+	    UserDb.Format format = args[3].equals("binary") ? UserDb.Format.BINARY : UserDb.Format.JSON;
+	    converted = userDb.export(new FileDb(args[2]), format);
+	}
+	if (converted) {
+	    System.out.format("БД %s сохранена в %s\n", args[1], args[2]);
+	} else {
+	    System.out.format("Ошибка сохранения БД в %s!\n", args[2]);
+	}
+	userDb.close();
+    }
+
+    /* import <файл или каталог БД> <выписка .csv или .jsonl> */
+    private static void importTransactions(String[] args) {
+	if (args.length != 3) {
+	    System.out.println("Использование: import <файл БД> <выписка .csv или .jsonl>");
+	    return;
+	}
+
+	UserDb userDb = new File(args[1]).isDirectory() ? new ShardedUserDb(args[1]) : new UserDb(args[1]);
+	if (!userDb.init()) {
+	    System.out.format("Ошибка загрузки БД %s!\n", args[1]);
+	    return;
+	}
+
+	File file = new File(args[2]);
+	TransactionImporter importer = new TransactionImporter(userDb, Runtime.getRuntime().availableProcessors());
+	if (!importer.importFile(file, TransactionImporter.formatOf(file))) {
+	    System.out.format("Ошибка импорта %s!\n", args[2]);
+	}
+	userDb.close();
+    }
+
+    /* script <файл или каталог БД> <файл команд или - для стандартного ввода> */
+    private static void runScript(String[] args) {
+	if (args.length != 3) {
+	    System.out.println("Использование: script <файл БД> <файл команд или ->");
+	    return;
+	}
+
+	UserDb userDb = new File(args[1]).isDirectory() ? new ShardedUserDb(args[1]) : new UserDb(args[1]);
+	if (!userDb.init()) {
+	    System.out.format("Ошибка загрузки БД %s!\n", args[1]);
+	    return;
+	}
+	userDb.getMetrics().register(args[1]);
+
+	PrintStream output = new PrintStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), 1 << 16),
+		false, StandardCharsets.UTF_8);
+	try (BufferedReader reader = args[2].equals("-")
+		? new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8))
+		: Files.newBufferedReader(new File(args[2]).toPath(), StandardCharsets.UTF_8)) {
+	    new ScriptRunner(userDb, output).run(reader);
+	} catch (IOException e) {
+	    System.out.format("Ошибка чтения %s!\n", args[2]);
+	}
+	userDb.close();
+    }
+
+    /* generate <новый файл или каталог БД> <пользователей> [json|binary|sharded] [категорий] [переводов] */
+    private static void generate(String[] args) {
+	if (args.length < 3 || args.length > 6) {
+	    System.out.println(
+		    "Использование: generate <новый файл БД> <пользователей> [json|binary|sharded] [категорий] [переводов на пользователя]");
+	    return;
+	}
+
+	try {
+	    WorkloadGenerator generator = new WorkloadGenerator(Integer.parseInt(args[2]));
+	    if (args.length > 4)
+		generator.setMaxCategories(Integer.parseInt(args[4]));
+	    if (args.length > 5)
+		generator.setTransfersPerUser(Integer.parseInt(args[5]));
+	    if (!generator.write(args[1], (args.length > 3) ? args[3] : "json")) {
+		System.out.format("Ошибка создания БД %s!\n", args[1]);
+	    }
+	} catch (NumberFormatException e) {
+	    System.out.println("Неверное число!");
+	}
+    }
+
+    /* load <файл или каталог БД> [потоков] [сеансов] [операций в сеансе] */
+    private static void runLoad(String[] args) {
+	if (args.length < 2 || args.length > 5) {
+	    System.out.println("Использование: load <файл БД> [потоков] [сеансов] [операций в сеансе]");
+	    return;
+	}
+
+	int threads, sessions, operations;
+	try {
+	    threads = (args.length > 2) ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+	    sessions = (args.length > 3) ? Integer.parseInt(args[3]) : 1000;
+	    operations = (args.length > 4) ? Integer.parseInt(args[4]) : 20;
+	} catch (NumberFormatException e) {
+	    System.out.println("Неверное число!");
+	    return;
+	}
+
+	UserDb userDb = new File(args[1]).isDirectory() ? new ShardedUserDb(args[1]) : new UserDb(args[1]);
+	if (!userDb.init()) {
+	    System.out.format("Ошибка загрузки БД %s!\n", args[1]);
+	    return;
+	}
+	userDb.getMetrics().register(args[1]);
+	userDb.startCheckpoints(ConsoleUI.CHECKPOINT_PERIOD_SEC, ConsoleUI.CHECKPOINT_MUTATIONS);
+
+	new LoadHarness(userDb, threads, sessions, operations).run(System.out);
+	System.out.format("Журнал БД: %s\n", userDb.getCommitStats());
+	System.out.format("Метрики БД:\n%s", userDb.getMetrics());
+	userDb.close();
+    }
 }
@@ -0,0 +1,139 @@
+package sf.hrechko.cash;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Сервер без консоли: принимает подключения на локальном порту и ведёт для
+ * каждого отдельный сеанс ConsoleUI в своём потоке. Все сеансы работают с одной
+ * общей БД пользователей. Обмен идёт в UTF-8, подключиться можно, например,
+ * командой nc localhost <порт>.
+ */
+public class ConsoleServer {
+
+    public static final int DEFAULT_PORT = 4040;
+    private UserDb userDb;
+    private int port;
+    private ExecutorService sessions = null;
+    private ServerSocket serverSocket = null;
+    private Set<Socket> clients = ConcurrentHashMap.newKeySet(); // подключения открытых сеансов
+    private CountDownLatch stopped = new CountDownLatch(1);
+
+    public ConsoleServer(UserDb userDb, int port) {
+	this.userDb = userDb;
+	this.port = port;
+    }
+
+    public boolean run() {
+	if (!userDb.init()) {
+	    System.out.println("Ошибка подключения к БД пользователей!");
+	    return false;
+	}
+	userDb.startCheckpoints(ConsoleUI.CHECKPOINT_PERIOD_SEC, ConsoleUI.CHECKPOINT_MUTATIONS);
+
+	sessions = newSessionExecutor();
+	try (ServerSocket socket = new ServerSocket(port, 0, InetAddress.getLoopbackAddress())) {
+	    serverSocket = socket;
+	    System.out.format("Сервер запущен на порту %d\n", socket.getLocalPort());
+	    while (!socket.isClosed()) {
+		Socket client = socket.accept();
+		clients.add(client);
+		sessions.execute(() -> serve(client));
+	    }
+	} catch (IOException e) {
+	    if (serverSocket == null || !serverSocket.isClosed())
+		e.printStackTrace();
+	} finally {
+	    closeSessions();
+	    System.out.format("Журнал БД: %s\n", userDb.getCommitStats());
+	    System.out.format("Метрики БД:\n%s", userDb.getMetrics());
+	    userDb.close();
+	    stopped.countDown();
+	}
+	return true;
+    }
+
+    /* Останавливает приём подключений и ждёт сохранения БД */
+    public void stop() {
+	if (serverSocket == null)
+	    return;
+	try {
+	    serverSocket.close();
+	    stopped.await();
+	} catch (IOException e) {
+	    e.printStackTrace();
+	} catch (InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	}
+    }
+
+    /*
+     * Закрывает подключения клиентов: ожидающий ввода сеанс получает конец ввода и
+     * завершается, начатая операция успевает выполниться. БД закрывается только
+     * после завершения всех сеансов.
+     */
+    private void closeSessions() {
+	sessions.shutdown();
+	for (Socket client : clients) {
+	    try {
+		client.close();
+	    } catch (IOException e) {
+		e.printStackTrace();
+	    }
+	}
+	try {
+	    if (!sessions.awaitTermination(1, TimeUnit.MINUTES)) {
+		System.out.println("Не все сеансы завершились!");
+		sessions.shutdownNow();
+	    }
+	} catch (InterruptedException e) {
+	    sessions.shutdownNow();
+	    Thread.currentThread().interrupt();
+	}
+    }
+
+    private void serve(Socket client) {
+	try (client) {
+	    // Кадр меню уходит в сокет одной записью при сбросе
+	    PrintStream output = new PrintStream(new BufferedOutputStream(client.getOutputStream(), 1 << 16), false,
+		    StandardCharsets.UTF_8.name());
+	    ConsoleUI session = new ConsoleUI(client.getInputStream(), StandardCharsets.UTF_8, output);
+	    session.attachToDb(userDb);
+	    do {
+		session.draw();
+	    } while (session.input());
+	} catch (NoSuchElementException e) {
+	    // Клиент отключился посреди сеанса
+	} catch (IOException e) {
+	    // Сокет закрыт при остановке сервера
+	    if (!client.isClosed())
+		e.printStackTrace();
+	} finally {
+	    clients.remove(client);
+	}
+    }
+
+    /*
+     * Виртуальный поток на каждый сеанс, если JVM их поддерживает. Метод ищется
+     * через отражение, так как проект собирается под более старую версию Java.
+     */
+    private static ExecutorService newSessionExecutor() {
+	try {
+	    return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+	} catch (ReflectiveOperationException e) {
+	    return Executors.newCachedThreadPool();
+	}
+    }
+}
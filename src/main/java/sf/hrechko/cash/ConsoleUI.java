@@ -1,6 +1,17 @@
 package sf.hrechko.cash;
 
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.charset.Charset;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
 import java.util.InputMismatchException;
+import java.util.Map;
 import java.util.Scanner;
 
 import sf.hrechko.cash.UserDb.CashCategory;
@@ -73,59 +84,55 @@ public class ConsoleUI {
     }
 
     private abstract class Menu implements Interactivable {
-	private final char DELIMETER = '-';
-	private final int DELIMETER_LENGTH = 10;
+	private static final String DELIMETER = "----------\n";
 	private MenuId id;
+	protected String header; // неизменный текст заголовка готовится один раз
 
 	public Menu(MenuId id) {
 	    this.id = id;
+	    header = DELIMETER + id.getStr() + "\n" + DELIMETER;
 	}
 
 	public MenuId getId() {
 	    return id;
 	}
 
-	private void drawDelimeter() {
-	    for (int i = 0; i < DELIMETER_LENGTH; ++i)
-		System.out.format("%c", DELIMETER);
-	    System.out.println();
-	}
-
 	protected void drawHeader() {
-	    drawDelimeter();
-	    System.out.println(getId().getStr());
-	    drawDelimeter();
+	    out.write(header);
 	}
 
 	protected void drawHeader(String additionalStr) {
-	    drawDelimeter();
-	    System.out.format("%s %s\n", getId().getStr(), additionalStr);
-	    drawDelimeter();
+	    out.write(DELIMETER);
+	    out.format("%s %s\n", getId().getStr(), additionalStr);
+	    out.write(DELIMETER);
 	}
     }
 
     private class ChooseMenu extends Menu {
 
 	private MenuElement[] elements;
+	private String text; // заголовок и пункты меню
 
 	public ChooseMenu(MenuId id, MenuElement[] elements) {
 	    super(id);
 	    this.elements = elements;
+	    StringBuilder menuText = new StringBuilder(header);
+	    for (MenuElement element : elements) {
+		menuText.append(element.toString()).append('\n');
+	    }
+	    text = menuText.toString();
 	}
 
 	@Override
 	public void draw() {
-	    drawHeader();
-	    for (MenuElement element : elements) {
-		System.out.println(element.toString());
-	    }
+	    out.write(text);
 	}
 
 	@Override
 	public boolean input(Scanner inputSrc) {
-	    System.out.format("Введите число соответствующее пункту меню: ");
+	    out.format("Введите число соответствующее пункту меню: ");
 	    String input = inputSrc.next();
-	    System.out.println();
+	    out.println();
 	    if (input.length() == 1) {
 		char inputCh = input.charAt(0);
 		if (Character.isDigit(inputCh)) {
@@ -133,10 +140,11 @@ public class ConsoleUI {
 		    if (menuEl != null) {
 			switch (menuEl.action()) {
 			case CHANGE_MENU_ACTION:
-			    ConsoleUI.getCLI().setMenuById(menuEl.changeMenu());
+			    setMenuById(menuEl.changeMenu());
 			    break;
 			case EXIT_ACTION:
-			    inputSrc.close();
+			    // Ввод не закрывается: последний кадр ещё не выведен, а подключение
+			    // сеанса закрывает ConsoleServer
 			    return false;
 			default:
 			    ;
@@ -145,7 +153,7 @@ public class ConsoleUI {
 		    }
 		}
 	    }
-	    System.out.println("Ошибка ввода!");
+	    out.println("Ошибка ввода!");
 	    return true;
 	}
 
@@ -165,21 +173,96 @@ public class ConsoleUI {
 	USER_EXISTS, USER_OK;
     }
 
-    /* Тело основного класса: Singletone */
-    private static Menu currentMenu;
-    private static Menu[] allMenu;
+    /*
+     * Весь вывод копится в буфере кадра и уходит на терминал одной записью, когда
+     * интерфейс собирается ждать ввода (см. FrameInput) или завершает работу.
+     * Длинный вывод без ввода уходит частями по FRAME_LIMIT символов (см.
+     * FrameWriter), чтобы буфер не рос без ограничений.
+     */
+    private class FrameInput extends FilterInputStream {
+	FrameInput(InputStream input) {
+	    super(input);
+	}
+
+	@Override
+	public int read() throws IOException {
+	    flushFrame();
+	    return super.read();
+	}
+
+	@Override
+	public int read(byte[] buffer, int offset, int length) throws IOException {
+	    flushFrame();
+	    return super.read(buffer, offset, length);
+	}
+    }
+
+    private class FrameWriter extends StringWriter {
+	FrameWriter() {
+	    super(4096);
+	}
+
+	@Override
+	public void write(int c) {
+	    super.write(c);
+	    limitFrame();
+	}
+
+	@Override
+	public void write(char[] chars, int offset, int length) {
+	    super.write(chars, offset, length);
+	    limitFrame();
+	}
+
+	@Override
+	public void write(String str) {
+	    super.write(str);
+	    limitFrame();
+	}
+
+	@Override
+	public void write(String str, int offset, int length) {
+	    super.write(str, offset, length);
+	    limitFrame();
+	}
+
+	private void limitFrame() {
+	    if (getBuffer().length() >= FRAME_LIMIT)
+		flushFrame();
+	}
+    }
+
+    /*
+     * Тело основного класса. Консольный интерфейс приложения - singletone, а сеансы
+     * сервера создают собственные экземпляры со своим вводом и выводом.
+     */
     private static ConsoleUI cli = null;
+    static final long CHECKPOINT_PERIOD_SEC = 60;
+    static final int CHECKPOINT_MUTATIONS = 100;
+    static final int FRAME_LIMIT = 64 * 1024;
+    static final DateTimeFormatter DATE_FORMAT = DateTimeFormatter.ofPattern("dd.MM.yyyy");
+    private Menu currentMenu;
+    private Menu[] allMenu;
     private Scanner userInput;
+    private PrintStream terminal;
+    private StringWriter frame = new FrameWriter();
+    private PrintWriter out = new PrintWriter(frame);
     private UserDb userDb = null;
+    private boolean ownsDb = false; // БД закрывается только её владельцем
     private User currentUser = null;
 
     private ConsoleUI() {
+	this(System.in, Charset.defaultCharset(), System.out);
+	cli = this;
+    }
+
+    public ConsoleUI(InputStream input, Charset charset, PrintStream output) {
+	userInput = new Scanner(new FrameInput(input), charset.name());
+	terminal = output;
 	currentMenu = createMainMenu();
 	allMenu = new Menu[] { currentMenu, createAutorizationMenu(), createRegistrationMenu(), createAccountMenu(),
 		createRevenueMenu(), createAccountRefillMenu(), createAccountSpendingMenu(),
 		createAccountWithdrawalMenu() };
-	userInput = new Scanner(System.in);
-	cli = this;
     }
 
     public static ConsoleUI getCLI() {
@@ -189,9 +272,19 @@ public class ConsoleUI {
 	return cli;
     }
 
-    public boolean connectToDb(String filePath) {
-	userDb = new UserDb(filePath);
-	return userDb.init();
+    public boolean connectToDb(UserDb db) {
+	userDb = db;
+	ownsDb = true;
+	if (!userDb.init())
+	    return false;
+	userDb.startCheckpoints(CHECKPOINT_PERIOD_SEC, CHECKPOINT_MUTATIONS);
+	return true;
+    }
+
+    /* Подключение к уже открытой БД, общей для нескольких сеансов */
+    public void attachToDb(UserDb db) {
+	userDb = db;
+	ownsDb = false;
     }
 
     public void draw() {
@@ -199,7 +292,21 @@ public class ConsoleUI {
     }
 
     public boolean input() {
-	return currentMenu.input(userInput);
+	boolean running = currentMenu.input(userInput);
+	if (!running) {
+	    flushFrame();
+	}
+	return running;
+    }
+
+    /* Кадр выводится одной записью; буфер кадра используется повторно */
+    private void flushFrame() {
+	StringBuffer buffer = frame.getBuffer();
+	if (buffer.length() == 0)
+	    return;
+	terminal.append(buffer);
+	terminal.flush();
+	buffer.setLength(0);
     }
 
     public void setCurrentUser(User user) {
@@ -224,6 +331,50 @@ public class ConsoleUI {
 	}
     }
 
+    /* Запрос периода отчёта; null при ошибке ввода */
+    private LocalDate[] readPeriod(Scanner inputSrc) {
+	try {
+	    out.format("Введите начало периода (дд.мм.гггг): ");
+	    LocalDate from = LocalDate.parse(inputSrc.next(), DATE_FORMAT);
+	    out.format("Введите конец периода (дд.мм.гггг): ");
+	    LocalDate to = LocalDate.parse(inputSrc.next(), DATE_FORMAT);
+	    out.println();
+	    return new LocalDate[] { from, to };
+	} catch (DateTimeParseException exp) {
+	    out.println("\nОшибка ввода даты!");
+	    return null;
+	}
+    }
+
+    /* Сумма операции; Money.parse допускает знак, а сумма должна быть больше нуля */
+    private static long readAmount(Scanner inputSrc) {
+	long amount = Money.parse(inputSrc.next());
+	if (amount <= 0)
+	    throw new NumberFormatException("Сумма должна быть больше нуля: " + Money.toString(amount));
+	return amount;
+    }
+
+    /* Списание отклоняется из-за нехватки средств или если не удалась запись журнала */
+    private void printRejected(User user, long value, String operation) {
+	if (user.getBalance() < value) {
+	    out.println("Недостаточно средств на балансе!");
+	} else {
+	    out.format("Ошибка записи операции! %s\n", operation);
+	}
+    }
+
+    private void drawPeriodReport(String title, Map<String, Long> values, char sign, LocalDate[] period) {
+	out.format("%s за %s - %s:\n", title, DATE_FORMAT.format(period[0]), DATE_FORMAT.format(period[1]));
+	long totalCount = 0;
+	for (var value : values.entrySet()) {
+	    totalCount += value.getValue();
+	    if (value.getValue() != 0) {
+		out.format("%s : %c%s руб.\n", value.getKey(), sign, Money.toString(value.getValue()));
+	    }
+	}
+	out.format("\nВсего за период: %c%s\n\n", sign, Money.toString(totalCount));
+    }
+
     /* Создание Менюшек */
     private Menu createMainMenu() {
 	int order = 1;
@@ -250,7 +401,8 @@ public class ConsoleUI {
 	}, new MenuElement(order++, "Выход") {
 	    @Override
 	    public Action action() {
-		userDb.close();
+		if (ownsDb)
+		    userDb.close();
 		return Action.EXIT_ACTION;
 	    }
 	}, };
@@ -263,7 +415,7 @@ public class ConsoleUI {
 	return new Menu(MenuId.AUTORIZATION_MENU) {
 
 	    private StandartMenuStates state = StandartMenuStates.ENTER_LOGIN;
-	    private User user = null;
+	    private String login = null;
 
 	    @Override
 	    public void draw() {
@@ -274,23 +426,23 @@ public class ConsoleUI {
 		switch (state) {
 		case ENTER_LOGIN:
 		    drawHeader();
-		    System.out.format("Введите логин: ");
+		    out.format("Введите логин: ");
 		    state = StandartMenuStates.READ_LOGIN;
 		    break;
 		case ENTER_PWD:
-		    System.out.format("Введите пароль: ");
+		    out.format("Введите пароль: ");
 		    state = StandartMenuStates.READ_PWD;
 		    break;
 		case USER_DB_ERROR:
-		    System.out.println("Ошибка подключения к БД пользователей!");
+		    out.println("Ошибка подключения к БД пользователей!");
 		    state = StandartMenuStates.RETURN_TO_MAIN_MENU;
 		    break;
 		case USER_NOT_FOUND:
-		    System.out.println("Пользователь с таким именем не найден!");
+		    out.println("Пользователь с таким именем не найден!");
 		    state = StandartMenuStates.RETURN_TO_MAIN_MENU;
 		    break;
 		case PSWD_ERROR:
-		    System.out.println("Неверный пароль!");
+		    out.println("Неверный пароль!");
 		    state = StandartMenuStates.RETURN_TO_MAIN_MENU;
 		    break;
 		default:
@@ -302,16 +454,20 @@ public class ConsoleUI {
 	    public boolean input(Scanner inputSrc) {
 		switch (state) {
 		case READ_LOGIN:
-		    String login = inputSrc.next();
-		    state = (userDb.isUserPresent(login)) ? StandartMenuStates.ENTER_PWD
-			    : StandartMenuStates.USER_NOT_FOUND;
-		    user = userDb.getUser(login);
+		    login = inputSrc.next();
+		    if (userDb.isUserPresent(login)) {
+			state = StandartMenuStates.ENTER_PWD;
+		    } else {
+			userDb.getMetrics().increment(Metrics.LOGIN_REJECTED);
+			state = StandartMenuStates.USER_NOT_FOUND;
+		    }
 		    break;
 		case READ_PWD:
 		    String passwd = inputSrc.next();
-		    if (user.checkPassword(passwd)) {
-			ConsoleUI.getCLI().setCurrentUser(user);
-			ConsoleUI.getCLI().setMenuById(MenuId.ACCOUNT_MAIN_MENU);
+		    User user = userDb.login(login, passwd);
+		    if (user != null) {
+			setCurrentUser(user);
+			setMenuById(MenuId.ACCOUNT_MAIN_MENU);
 			state = StandartMenuStates.ENTER_LOGIN;
 		    } else {
 			state = StandartMenuStates.PSWD_ERROR;
@@ -319,7 +475,7 @@ public class ConsoleUI {
 		    break;
 		case RETURN_TO_MAIN_MENU:
 		    state = StandartMenuStates.ENTER_LOGIN;
-		    ConsoleUI.getCLI().setMenuById(MenuId.ENTER_MENU);
+		    setMenuById(MenuId.ENTER_MENU);
 		    break;
 		default:
 		    ;
@@ -345,31 +501,31 @@ public class ConsoleUI {
 		switch (state) {
 		case ENTER_LOGIN:
 		    drawHeader();
-		    System.out.format("Введите логин: ");
+		    out.format("Введите логин: ");
 		    state = StandartMenuStates.READ_LOGIN;
 		    break;
 		case ENTER_PWD:
 		    if (pwdCount == 0) {
-			System.out.format("Введите пароль: ");
+			out.format("Введите пароль: ");
 		    } else {
-			System.out.format("Введите пароль ещё раз: ");
+			out.format("Введите пароль ещё раз: ");
 		    }
 		    state = StandartMenuStates.READ_PWD;
 		    break;
 		case PSWD_ERROR:
-		    System.out.println("Пароли не совпадают!");
+		    out.println("Пароли не совпадают!");
 		    state = StandartMenuStates.RETURN_TO_MAIN_MENU;
 		    break;
 		case USER_DB_ERROR:
-		    System.out.println("Ошибка подключения к БД пользователей!");
+		    out.println("Ошибка подключения к БД пользователей!");
 		    state = StandartMenuStates.RETURN_TO_MAIN_MENU;
 		    break;
 		case USER_EXISTS:
-		    System.out.println("Пользователь с таким именем существует!");
+		    out.println("Пользователь с таким именем существует!");
 		    state = StandartMenuStates.ENTER_LOGIN;
 		    break;
 		case USER_OK:
-		    System.out.println("Пользователь успешно добавлен. Возврат в главное меню!");
+		    out.println("Пользователь успешно добавлен. Возврат в главное меню!");
 		    state = StandartMenuStates.RETURN_TO_MAIN_MENU;
 		    break;
 		default:
@@ -407,7 +563,7 @@ public class ConsoleUI {
 		    break;
 		case RETURN_TO_MAIN_MENU:
 		    state = StandartMenuStates.ENTER_LOGIN;
-		    ConsoleUI.getCLI().setMenuById(MenuId.ENTER_MENU);
+		    setMenuById(MenuId.ENTER_MENU);
 		    break;
 		default:
 		    ;
@@ -422,40 +578,40 @@ public class ConsoleUI {
     private Menu createAccountMenu() {
 	return new Menu(MenuId.ACCOUNT_MAIN_MENU) {
 
-	    // private User user = ConsoleUI.getCLI().getCurrentUser();
+	    // private User user = getCurrentUser();
 
 	    @Override
 	    public void draw() {
-		User user = ConsoleUI.getCLI().getCurrentUser();
+		User user = getCurrentUser();
 		drawHeader(user.getLogin());
-		System.out.format("Баланс: %.02f руб.\n\n", user.getBalance());
-		System.out.println("1. Доходы.");
-		System.out.println("2. Расходы.");
-		System.out.println("3. Выйти из аккаунта.\n");
-		System.out.format("Введите число соответствующее пункту меню: ");
+		out.format("Баланс: %s руб.\n\n", Money.toString(user.getBalance()));
+		out.println("1. Доходы.");
+		out.println("2. Расходы.");
+		out.println("3. Выйти из аккаунта.\n");
+		out.format("Введите число соответствующее пункту меню: ");
 	    }
 
 	    @Override
 	    public boolean input(Scanner inputSrc) {
 		String input = inputSrc.next();
-		System.out.println();
+		out.println();
 		if (input.length() == 1) {
 		    char inputCh = input.charAt(0);
 		    if (Character.isDigit(inputCh)) {
 			switch (inputCh) {
 			case '1':
-			    ConsoleUI.getCLI().setMenuById(MenuId.ACCOUNT_REVENUE_MENU);
+			    setMenuById(MenuId.ACCOUNT_REVENUE_MENU);
 			    return true;
 			case '2':
-			    ConsoleUI.getCLI().setMenuById(MenuId.ACCOUNT_SPENDING_MENU);
+			    setMenuById(MenuId.ACCOUNT_SPENDING_MENU);
 			    return true;
 			case '3':
-			    ConsoleUI.getCLI().setMenuById(MenuId.ENTER_MENU);
+			    setMenuById(MenuId.ENTER_MENU);
 			    return true;
 			}
 		    }
 		}
-		System.out.println("Ошибка ввода!");
+		out.println("Ошибка ввода!");
 		return true;
 	    }
 
@@ -465,40 +621,45 @@ public class ConsoleUI {
     private Menu createRevenueMenu() {
 	return new Menu(MenuId.ACCOUNT_REVENUE_MENU) {
 
-	    // private User user = ConsoleUI.getCLI().getCurrentUser();
+	    // private User user = getCurrentUser();
 	    private boolean drawReport = false;
+	    private LocalDate[] period = null; // начало и конец периода отчёта
 
 	    @Override
 	    public void draw() {
-		User user = ConsoleUI.getCLI().getCurrentUser();
+		User user = getCurrentUser();
 		drawHeader(user.getLogin());
-		System.out.format("Баланс: %.02f руб.\n\n", user.getBalance());
+		out.format("Баланс: %s руб.\n\n", Money.toString(user.getBalance()));
 
 		if (drawReport) {
-		    String[] categoryList = user.getIncomeNames();
-		    double totalCount = 0;
-		    for (var cat : categoryList) {
-			CashCategory income = user.getIncomeByName(cat);
-			double value = income.getValue();
+		    long totalCount = 0;
+		    for (var income : user.getIncomes()) {
+			long value = income.getValue();
 			totalCount += value;
-			if ((int) (value * 100) > 0) {
-			    System.out.format("%s : +%.02f руб.\n", income.getName(), value);
+			if (value > 0) {
+			    out.format("%s : +%s руб.\n", income.getName(), Money.toString(value));
 			}
 		    }
-		    System.out.format("\nВсего доходов: +%.02f\n\n", totalCount);
+		    out.format("\nВсего доходов: +%s\n\n", Money.toString(totalCount));
 		    drawReport = false;
 		}
 
-		System.out.println("1. Отчёт.");
-		System.out.println("2. Пополнить.");
-		System.out.println("3. Назад.\n");
-		System.out.format("Введите число соответствующее пункту меню: ");
+		if (period != null) {
+		    drawPeriodReport("Доходы", userDb.getReport(user, period[0], period[1]).getIncomes(), '+', period);
+		    period = null;
+		}
+
+		out.println("1. Отчёт.");
+		out.println("2. Пополнить.");
+		out.println("3. Отчёт за период.");
+		out.println("4. Назад.\n");
+		out.format("Введите число соответствующее пункту меню: ");
 	    }
 
 	    @Override
 	    public boolean input(Scanner inputSrc) {
 		String input = inputSrc.next();
-		System.out.println();
+		out.println();
 		if (input.length() == 1) {
 		    char inputCh = input.charAt(0);
 		    if (Character.isDigit(inputCh)) {
@@ -507,15 +668,18 @@ public class ConsoleUI {
 			    drawReport = true;
 			    return true;
 			case '2':
-			    ConsoleUI.getCLI().setMenuById(MenuId.ACCOUNT_REFILL);
+			    setMenuById(MenuId.ACCOUNT_REFILL);
 			    return true;
 			case '3':
-			    ConsoleUI.getCLI().setMenuById(MenuId.ACCOUNT_MAIN_MENU);
+			    period = readPeriod(inputSrc);
+			    return true;
+			case '4':
+			    setMenuById(MenuId.ACCOUNT_MAIN_MENU);
 			    return true;
 			}
 		    }
 		}
-		System.out.println("Ошибка ввода!");
+		out.println("Ошибка ввода!");
 		return true;
 	    }
 
@@ -529,18 +693,18 @@ public class ConsoleUI {
 
 	    @Override
 	    public void draw() {
-		User user = ConsoleUI.getCLI().getCurrentUser();
+		User user = getCurrentUser();
 		drawHeader(user.getLogin());
-		System.out.format("Баланс: %.02f руб.\n\n", user.getBalance());
+		out.format("Баланс: %s руб.\n\n", Money.toString(user.getBalance()));
 		catList = user.getIncomeNames();
 		for (int i = 0; i < catList.length; ++i) {
-		    System.out.format("%d. %s.\n", (i + 1), catList[i]);
+		    out.format("%d. %s.\n", (i + 1), catList[i]);
 		}
-		System.out.format("%d. Добавить категорию.\n", catList.length + 1);
-		System.out.format("%d. Удалить  категорию.\n\n", catList.length + 2);
-		System.out.format("%d. Вернуться в предыдущее меню.\n\n", catList.length + 3);
+		out.format("%d. Добавить категорию.\n", catList.length + 1);
+		out.format("%d. Удалить  категорию.\n\n", catList.length + 2);
+		out.format("%d. Вернуться в предыдущее меню.\n\n", catList.length + 3);
 
-		System.out.format("Введите число соответствующее пункту меню: ");
+		out.format("Введите число соответствующее пункту меню: ");
 	    }
 
 	    @Override
@@ -548,10 +712,10 @@ public class ConsoleUI {
 
 		try {
 		    int input = inputSrc.nextInt();
-		    System.out.println();
+		    out.println();
 
 		    if ((input < 1) || (input > (catList.length + 3))) {
-			System.out.println("Ошибка ввода!");
+			out.println("Ошибка ввода!");
 			return true;
 		    }
 
@@ -560,75 +724,80 @@ public class ConsoleUI {
 		    } else if (input == catList.length + 2) {
 			deleteCategory(inputSrc);
 		    } else if (input == catList.length + 3) {
-			ConsoleUI.getCLI().setMenuById(MenuId.ACCOUNT_REVENUE_MENU);
+			setMenuById(MenuId.ACCOUNT_REVENUE_MENU);
 		    } else {
 			refillCategory(inputSrc, input);
 		    }
 		} catch (InputMismatchException exp) {
-		    System.out.println("Ошибка ввода!");
+		    inputSrc.next(); // иначе неверный ввод читается снова и снова
+		    out.println("Ошибка ввода!");
 		}
 
 		return true;
 	    }
 
 	    private void refillCategory(Scanner inputSrc, int catNum) {
-		System.out.format("Пополнение категории %s. Введите сумму пополнения: ", catList[catNum - 1]);
+		out.format("Пополнение категории %s. Введите сумму пополнения: ", catList[catNum - 1]);
 		try {
-		    double input = inputSrc.nextDouble();
-		    System.out.format(
-			    "Вы собираетесь пополнить категорию %s на %.02f руб. Вы действительно хотите это сделать?\n",
-			    catList[catNum - 1], input);
-		    System.out.println("1. Подтвердить.");
-		    System.out.println("Любой другой ввод приведёт к отмене операции!");
-		    System.out.format("Введите число соответствующее пункту меню: ");
+		    long input = readAmount(inputSrc);
+		    out.format(
+			    "Вы собираетесь пополнить категорию %s на %s руб. Вы действительно хотите это сделать?\n",
+			    catList[catNum - 1], Money.toString(input));
+		    out.println("1. Подтвердить.");
+		    out.println("Любой другой ввод приведёт к отмене операции!");
+		    out.format("Введите число соответствующее пункту меню: ");
 		    String confirm = inputSrc.next();
-		    System.out.println();
+		    out.println();
 		    if (confirm.length() == 1 && confirm.charAt(0) == '1') {
-			User user = ConsoleUI.getCLI().getCurrentUser();
-			user.setIncome(userDb.new CashCategory(catList[catNum - 1], input));
-			System.out.format("Операция пополнения категории %s на сумму %.02f успешно выполнена!\n",
-				catList[catNum - 1], input);
+			User user = getCurrentUser();
+			if (user.refill(userDb.new CashCategory(catList[catNum - 1], input))) {
+			    out.format("Операция пополнения категории %s на сумму %s успешно выполнена!\n",
+				    catList[catNum - 1], Money.toString(input));
+			} else {
+			    out.println("Ошибка записи операции! Пополнение не выполнено");
+			}
 			return;
 		    }
-		    System.out.println("Отмена операции пополнения!");
-		} catch (InputMismatchException exp) {
-		    System.out.println("Ошибка ввода! Отмена операции пополнения!");
+		    out.println("Отмена операции пополнения!");
+		} catch (NumberFormatException exp) {
+		    out.println("Ошибка ввода! Отмена операции пополнения!");
 		}
 	    }
 
 	    private void addCategory(Scanner inputSrc) {
-		System.out.println("Введите название категории для добавления: ");
+		out.println("Введите название категории для добавления: ");
 		String catInput = inputSrc.next();
-		User user = ConsoleUI.getCLI().getCurrentUser();
+		User user = getCurrentUser();
 		if (user.getIncomeByName(catInput) != null) {
-		    System.out.println("Такая категория уже существует!");
+		    out.println("Такая категория уже существует!");
 		} else {
 		    user.setIncome(userDb.new CashCategory(catInput));
 		}
 	    }
 
 	    private void deleteCategory(Scanner inputSrc) {
-		System.out.println("Введите название категории для удаления: ");
+		out.println("Введите название категории для удаления: ");
 		String catInput = inputSrc.next();
-		User user = ConsoleUI.getCLI().getCurrentUser();
+		User user = getCurrentUser();
 		CashCategory cat = user.getIncomeByName(catInput);
 		if (cat == null) {
-		    System.out.println("Такой категории не существует!");
+		    out.println("Такой категории не существует!");
 		} else if (!cat.isErasable()) {
-		    System.out.println("Эту категорию невозможно удалить!");
+		    out.println("Эту категорию невозможно удалить!");
 		} else {
-		    double value = cat.getValue();
-		    System.out.format("\nВНИМАНИЕ! Удаление категории %s со значением %.02f\n", cat.getName(), value);
-		    System.out.format(
-			    "1. Удаление с сохранением баланса. При удалении общий баланс не изменится, а значение %.02f будет учтено как доход категории Пополнение.\n",
-			    value);
-		    System.out.format(
-			    "2. Удаление без сохранения баланса. При удалении общий баланс будет уменьшен на %.02f и учтён, как расход категории Снятие.\n",
-			    value);
-		    System.out.format("Любой другой ввод приведёт к отмене операции удаления!\n");
-		    System.out.format("Введите число соответствующее пункту меню: ");
+		    long value = cat.getValue();
+		    out.format("\nВНИМАНИЕ! Удаление категории %s со значением %s\n", cat.getName(),
+			    Money.toString(value));
+		    out.format(
+			    "1. Удаление с сохранением баланса. При удалении общий баланс не изменится, а значение %s будет учтено как доход категории Пополнение.\n",
+			    Money.toString(value));
+		    out.format(
+			    "2. Удаление без сохранения баланса. При удалении общий баланс будет уменьшен на %s и учтён, как расход категории Снятие.\n",
+			    Money.toString(value));
+		    out.format("Любой другой ввод приведёт к отмене операции удаления!\n");
+		    out.format("Введите число соответствующее пункту меню: ");
 		    catInput = inputSrc.next();
-		    System.out.println();
+		    out.println();
 		    if (catInput.length() == 1) {
 			char inputCh = catInput.charAt(0);
 			String catName = cat.getName();
@@ -638,25 +807,25 @@ public class ConsoleUI {
 
 				if (user.deleteIncome(cat)) {
 				    user.setIncome(userDb.new CashCategory("Пополнение", value));
-				    System.out.format("Удаление %s успешно с сохранением баланса!\n", catName);
+				    out.format("Удаление %s успешно с сохранением баланса!\n", catName);
 				} else {
-				    System.out.format("Ошибка удаления категории %s\n", catName);
+				    out.format("Ошибка удаления категории %s\n", catName);
 				}
 				return;
 			    case '2':
 				if (user.deleteIncome(cat)) {
 				    user.setIncome(userDb.new CashCategory("Пополнение", value));
 				    user.setOutcome(userDb.new CashCategory("Снятие", value));
-				    System.out.format("Удаление %s успешно без сохранения баланса!\n", catName);
+				    out.format("Удаление %s успешно без сохранения баланса!\n", catName);
 				} else {
-				    System.out.format("Ошибка удаления категории %s\n", catName);
+				    out.format("Ошибка удаления категории %s\n", catName);
 				}
 				return;
 			    default:
 			    }
 			}
 		    }
-		    System.out.println("Отмена операции удаления!");
+		    out.println("Отмена операции удаления!");
 		}
 	    }
 
@@ -667,38 +836,44 @@ public class ConsoleUI {
 	return new Menu(MenuId.ACCOUNT_SPENDING_MENU) {
 
 	    private boolean drawReport = false;
+	    private LocalDate[] period = null; // начало и конец периода отчёта
 
 	    @Override
 	    public void draw() {
-		User user = ConsoleUI.getCLI().getCurrentUser();
+		User user = getCurrentUser();
 		drawHeader(user.getLogin());
-		System.out.format("Баланс: %.02f руб.\n\n", user.getBalance());
+		out.format("Баланс: %s руб.\n\n", Money.toString(user.getBalance()));
 
 		if (drawReport) {
-		    String[] categoryList = user.getOutcomeNames();
-		    double totalCount = 0;
-		    for (var cat : categoryList) {
-			CashCategory outcome = user.getOutcomeByName(cat);
-			double value = outcome.getValue();
+		    long totalCount = 0;
+		    for (var outcome : user.getOutcomes()) {
+			long value = outcome.getValue();
 			totalCount += value;
-			if ((int) (value * 100) > 0) {
-			    System.out.format("%s : -%.02f руб.\n", outcome.getName(), value);
+			if (value > 0) {
+			    out.format("%s : -%s руб.\n", outcome.getName(), Money.toString(value));
 			}
 		    }
-		    System.out.format("\nВсего расходов: -%.02f\n\n", totalCount);
+		    out.format("\nВсего расходов: -%s\n\n", Money.toString(totalCount));
 		    drawReport = false;
 		}
 
-		System.out.println("1. Отчёт.");
-		System.out.println("2. Списать.");
-		System.out.println("3. Назад.\n");
-		System.out.format("Введите число соответствующее пункту меню: ");
+		if (period != null) {
+		    drawPeriodReport("Расходы", userDb.getReport(user, period[0], period[1]).getOutcomes(), '-',
+			    period);
+		    period = null;
+		}
+
+		out.println("1. Отчёт.");
+		out.println("2. Списать.");
+		out.println("3. Отчёт за период.");
+		out.println("4. Назад.\n");
+		out.format("Введите число соответствующее пункту меню: ");
 	    }
 
 	    @Override
 	    public boolean input(Scanner inputSrc) {
 		String input = inputSrc.next();
-		System.out.println();
+		out.println();
 		if (input.length() == 1) {
 		    char inputCh = input.charAt(0);
 		    if (Character.isDigit(inputCh)) {
@@ -707,15 +882,18 @@ public class ConsoleUI {
 			    drawReport = true;
 			    return true;
 			case '2':
-			    ConsoleUI.getCLI().setMenuById(MenuId.ACCOUNT_WITHDRAWAL);
+			    setMenuById(MenuId.ACCOUNT_WITHDRAWAL);
 			    return true;
 			case '3':
-			    ConsoleUI.getCLI().setMenuById(MenuId.ACCOUNT_MAIN_MENU);
+			    period = readPeriod(inputSrc);
+			    return true;
+			case '4':
+			    setMenuById(MenuId.ACCOUNT_MAIN_MENU);
 			    return true;
 			}
 		    }
 		}
-		System.out.println("Ошибка ввода!");
+		out.println("Ошибка ввода!");
 		return true;
 	    }
 
@@ -729,28 +907,28 @@ public class ConsoleUI {
 
 	    @Override
 	    public void draw() {
-		User user = ConsoleUI.getCLI().getCurrentUser();
+		User user = getCurrentUser();
 		drawHeader(user.getLogin());
-		System.out.format("Баланс: %.02f руб.\n\n", user.getBalance());
+		out.format("Баланс: %s руб.\n\n", Money.toString(user.getBalance()));
 		catList = user.getOutcomeNames();
 		for (int i = 0; i < catList.length; ++i) {
-		    System.out.format("%d. %s.\n", (i + 1), catList[i]);
+		    out.format("%d. %s.\n", (i + 1), catList[i]);
 		}
-		System.out.format("%d. Добавить категорию.\n", catList.length + 1);
-		System.out.format("%d. Удалить  категорию.\n\n", catList.length + 2);
-		System.out.format("%d. Вернуться в предыдущее меню.\n\n", catList.length + 3);
+		out.format("%d. Добавить категорию.\n", catList.length + 1);
+		out.format("%d. Удалить  категорию.\n\n", catList.length + 2);
+		out.format("%d. Вернуться в предыдущее меню.\n\n", catList.length + 3);
 
-		System.out.format("Введите число соответствующее пункту меню: ");
+		out.format("Введите число соответствующее пункту меню: ");
 	    }
 
 	    @Override
 	    public boolean input(Scanner inputSrc) {
 		try {
 		    int input = inputSrc.nextInt();
-		    System.out.println();
+		    out.println();
 
 		    if ((input < 1) || (input > (catList.length + 3))) {
-			System.out.println("Ошибка ввода!");
+			out.println("Ошибка ввода!");
 			return true;
 		    }
 
@@ -759,51 +937,53 @@ public class ConsoleUI {
 		    } else if (input == catList.length + 2) {
 			deleteCategory(inputSrc);
 		    } else if (input == catList.length + 3) {
-			ConsoleUI.getCLI().setMenuById(MenuId.ACCOUNT_SPENDING_MENU);
+			setMenuById(MenuId.ACCOUNT_SPENDING_MENU);
 		    } else {
 			withdrawalCategory(inputSrc, input);
 		    }
 		} catch (InputMismatchException exp) {
-		    System.out.println("Ошибка ввода!");
+		    inputSrc.next(); // иначе неверный ввод читается снова и снова
+		    out.println("Ошибка ввода!");
 		}
 
 		return true;
 	    }
 
 	    private void addCategory(Scanner inputSrc) {
-		System.out.println("Введите название категории для добавления: ");
+		out.println("Введите название категории для добавления: ");
 		String catInput = inputSrc.next();
-		User user = ConsoleUI.getCLI().getCurrentUser();
+		User user = getCurrentUser();
 		if (user.getOutcomeByName(catInput) != null) {
-		    System.out.println("Такая категория уже существует!");
+		    out.println("Такая категория уже существует!");
 		} else {
 		    user.setOutcome(userDb.new CashCategory(catInput));
 		}
 	    }
 
 	    private void deleteCategory(Scanner inputSrc) {
-		System.out.println("Введите название категории для удаления: ");
+		out.println("Введите название категории для удаления: ");
 		String catInput = inputSrc.next();
-		User user = ConsoleUI.getCLI().getCurrentUser();
+		User user = getCurrentUser();
 		CashCategory cat = user.getOutcomeByName(catInput);
 		if (cat == null) {
-		    System.out.println("Такой категории не существует!");
+		    out.println("Такой категории не существует!");
 		} else if (!cat.isErasable()) {
-		    System.out.println("Эту категорию невозможно удалить!");
+		    out.println("Эту категорию невозможно удалить!");
 		} else {
-		    double value = cat.getValue();
-		    System.out.format("\nВНИМАНИЕ! Удаление категории %s со значением %.02f\n", cat.getName(), value);
-		    System.out.format(
+		    long value = cat.getValue();
+		    out.format("\nВНИМАНИЕ! Удаление категории %s со значением %s\n", cat.getName(),
+			    Money.toString(value));
+		    out.format(
 			    // TODO
-			    "1. Удаление с сохранением баланса. При удалении общий баланс не изменится, а значение %.02f будет учтено как расход категории Снятие.\n",
-			    value);
-		    System.out.format(
-			    "2. Удаление без сохранения баланса. При удалении общий баланс будет увеличен на %.02f и учтён, как доход категории Пополнение.\n",
-			    value);
-		    System.out.format("Любой другой ввод приведёт к отмене операции удаления!\n");
-		    System.out.format("Введите число соответствующее пункту меню: ");
+			    "1. Удаление с сохранением баланса. При удалении общий баланс не изменится, а значение %s будет учтено как расход категории Снятие.\n",
+			    Money.toString(value));
+		    out.format(
+			    "2. Удаление без сохранения баланса. При удалении общий баланс будет увеличен на %s и учтён, как доход категории Пополнение.\n",
+			    Money.toString(value));
+		    out.format("Любой другой ввод приведёт к отмене операции удаления!\n");
+		    out.format("Введите число соответствующее пункту меню: ");
 		    catInput = inputSrc.next();
-		    System.out.println();
+		    out.println();
 		    if (catInput.length() == 1) {
 			char inputCh = catInput.charAt(0);
 			String catName = cat.getName();
@@ -813,88 +993,97 @@ public class ConsoleUI {
 
 				if (user.deleteOutcome(cat)) {
 				    user.setOutcome(userDb.new CashCategory("Снятие", value));
-				    System.out.format("Удаление %s успешно с сохранением баланса!\n", catName);
+				    out.format("Удаление %s успешно с сохранением баланса!\n", catName);
 				} else {
-				    System.out.format("Ошибка удаления категории %s\n", catName);
+				    out.format("Ошибка удаления категории %s\n", catName);
 				}
 				return;
 			    case '2':
 				if (user.deleteOutcome(cat)) {
 				    user.setIncome(userDb.new CashCategory("Пополнение", value));
 				    user.setOutcome(userDb.new CashCategory("Снятие", value));
-				    System.out.format("Удаление %s успешно без сохранения баланса!\n", catName);
+				    out.format("Удаление %s успешно без сохранения баланса!\n", catName);
 				} else {
-				    System.out.format("Ошибка удаления категории %s\n", catName);
+				    out.format("Ошибка удаления категории %s\n", catName);
 				}
 				return;
 			    default:
 			    }
 			}
 		    }
-		    System.out.println("Отмена операции удаления!");
+		    out.println("Отмена операции удаления!");
 		}
 	    }
 
 	    private void withdrawalCategory(Scanner inputSrc, int catNum) {
-		User user = ConsoleUI.getCLI().getCurrentUser();
+		User user = getCurrentUser();
 		if (catList[catNum - 1].equals("Перевод")) {
-		    System.out.println("Введите логин пользователя для перевода: ");
+		    out.println("Введите логин пользователя для перевода: ");
 		    String transUserName = inputSrc.next();
-		    User transUser = ConsoleUI.getCLI().getUserByName(transUserName);
+		    User transUser = getUserByName(transUserName);
 		    if (transUser == null) {
-			System.out.format("Пользователь %s не найден\n", transUserName);
+			userDb.getMetrics().increment(Metrics.TRANSFER_REJECTED);
+			out.format("Пользователь %s не найден\n", transUserName);
 		    } else {
-			System.out.println("Введите сумму перевода: ");
+			out.println("Введите сумму перевода: ");
 			try {
-			    double input = inputSrc.nextDouble();
-			    if ((user.getBalance() - input) < 0.) {
-				System.out.println("Недостаточно средств на балансе!");
+			    long input = readAmount(inputSrc);
+			    if ((user.getBalance() - input) < 0) {
+				userDb.getMetrics().increment(Metrics.TRANSFER_REJECTED);
+				out.println("Недостаточно средств на балансе!");
 			    } else {
-				System.out.format(
-					"Вы собираетесь перевести %.02f руб. пользователю %s. Вы действительно хотите это сделать?\n",
-					input, transUserName);
-				System.out.println("1. Подтвердить.");
-				System.out.println("Любой другой ввод приведёт к отмене операции!");
-				System.out.format("Введите число соответствующее пункту меню: ");
+				out.format(
+					"Вы собираетесь перевести %s руб. пользователю %s. Вы действительно хотите это сделать?\n",
+					Money.toString(input), transUserName);
+				out.println("1. Подтвердить.");
+				out.println("Любой другой ввод приведёт к отмене операции!");
+				out.format("Введите число соответствующее пункту меню: ");
 				String confirm = inputSrc.next();
-				System.out.println();
+				out.println();
 				if (confirm.length() == 1 && confirm.charAt(0) == '1') {
-				    user.setOutcome(userDb.new CashCategory(catList[catNum - 1], input));
-				    transUser.setIncome(userDb.new CashCategory(catList[catNum - 1], input));
-				    System.out.format("Перевод выполнен успешно!\n");
+				    // Баланс мог измениться, пока пользователь подтверждал перевод
+				    if (userDb.transfer(user, transUser, input)) {
+					out.format("Перевод выполнен успешно!\n");
+				    } else {
+					printRejected(user, input, "Перевод не выполнен");
+				    }
 				    return;
 				}
-				System.out.println("Отмена операции списания!");
+				out.println("Отмена операции списания!");
 			    }
-			} catch (InputMismatchException exp) {
-			    System.out.println("Ошибка ввода! Отмена операции списания!");
+			} catch (NumberFormatException exp) {
+			    out.println("Ошибка ввода! Отмена операции списания!");
 			}
 		    }
 		} else {
-		    System.out.format("Списание категории %s. Введите сумму списания: ", catList[catNum - 1]);
+		    out.format("Списание категории %s. Введите сумму списания: ", catList[catNum - 1]);
 		    try {
-			double input = inputSrc.nextDouble();
-			if ((user.getBalance() - input) < 0.) {
-			    System.out.println("Недостаточно средств на балансе!");
+			long input = readAmount(inputSrc);
+			if ((user.getBalance() - input) < 0) {
+			    userDb.getMetrics().increment(Metrics.WITHDRAW_REJECTED);
+			    out.println("Недостаточно средств на балансе!");
 			} else {
-			    System.out.format(
-				    "Вы собираетесь списать категорию %s на %.02f руб. Вы действительно хотите это сделать?\n",
-				    catList[catNum - 1], input);
-			    System.out.println("1. Подтвердить.");
-			    System.out.println("Любой другой ввод приведёт к отмене операции!");
-			    System.out.format("Введите число соответствующее пункту меню: ");
+			    out.format(
+				    "Вы собираетесь списать категорию %s на %s руб. Вы действительно хотите это сделать?\n",
+				    catList[catNum - 1], Money.toString(input));
+			    out.println("1. Подтвердить.");
+			    out.println("Любой другой ввод приведёт к отмене операции!");
+			    out.format("Введите число соответствующее пункту меню: ");
 			    String confirm = inputSrc.next();
-			    System.out.println();
+			    out.println();
 			    if (confirm.length() == 1 && confirm.charAt(0) == '1') {
-				user.setOutcome(userDb.new CashCategory(catList[catNum - 1], input));
-				System.out.format("Операция списания категории %s на сумму %.02f успешно выполнена!\n",
-					catList[catNum - 1], input);
+				if (user.withdraw(userDb.new CashCategory(catList[catNum - 1], input))) {
+				    out.format("Операция списания категории %s на сумму %s успешно выполнена!\n",
+					    catList[catNum - 1], Money.toString(input));
+				} else {
+				    printRejected(user, input, "Списание не выполнено");
+				}
 				return;
 			    }
-			    System.out.println("Отмена операции списания!");
+			    out.println("Отмена операции списания!");
 			}
-		    } catch (InputMismatchException exp) {
-			System.out.println("Ошибка ввода! Отмена операции списания!");
+		    } catch (NumberFormatException exp) {
+			out.println("Ошибка ввода! Отмена операции списания!");
 		    }
 		}
 	    }
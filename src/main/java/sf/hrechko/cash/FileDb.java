@@ -1,50 +1,87 @@
 package sf.hrechko.cash;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 
 public class FileDb {
 
+    public interface StreamReader {
+	public boolean read(InputStream input) throws IOException;
+    }
+
+    public interface StreamWriter {
+	public boolean write(OutputStream output) throws IOException;
+    }
+
+    private final String TMP_SUFFIX = ".tmp";
     protected File file;
-    private byte[] data;
 
     public FileDb(String filePath) {
 	file = new File(filePath);
     }
 
-    public boolean load() {
-	try {
-	    FileInputStream input = new FileInputStream(file);
-	    data = input.readAllBytes();
-	    input.close();
-	    return true;
-	} catch (IOException e) {
-	    // e.printStackTrace();
+    public File getFile() {
+	return file;
+    }
+
+    public boolean load(StreamReader reader) {
+	try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		InputStream input = Channels.newInputStream(channel)) {
+	    return reader.read(input);
+	} catch (NoSuchFileException e) {
 	    System.out.format("Файл %s не найден!\n", file.getName());
+	} catch (IOException e) {
+	    e.printStackTrace();
 	}
 	return false;
     }
 
-    public boolean save() {
-	FileOutputStream out;
+    public boolean save(StreamWriter writer) {
+	File tmpFile = getTmpFile();
 	try {
-	    out = new FileOutputStream(file);
-	    out.write(data);
-	    out.close();
-	    return true;
+	    boolean written;
+	    try (FileOutputStream fileOutput = new FileOutputStream(tmpFile);
+		    OutputStream output = new BufferedOutputStream(fileOutput)) {
+		written = writer.write(output);
+		output.flush();
+		fileOutput.getFD().sync();
+	    }
+	    if (written) {
+		replaceWith(tmpFile);
+		return true;
+	    }
 	} catch (IOException e) {
 	    e.printStackTrace();
 	}
+	tmpFile.delete();
 	return false;
     }
 
-    public String getStr() {
-	return new String(data);
+    /* Сохранение идёт во временный файл, который затем атомарно заменяет основной */
+    protected File getTmpFile() {
+	return new File(file.getPath() + TMP_SUFFIX);
     }
 
-    public void setStr(String strData) {
-	data = strData.getBytes();
+    protected void replaceWith(File tmpFile) throws IOException {
+	Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE,
+		StandardCopyOption.REPLACE_EXISTING);
+	// Переименование должно попасть на диск вместе с каталогом
+	Path dir = file.getAbsoluteFile().toPath().getParent();
+	try (FileChannel dirChannel = FileChannel.open(dir, StandardOpenOption.READ)) {
+	    dirChannel.force(true);
+	} catch (IOException e) {
+	    // Не все ОС позволяют синхронизировать каталог
+	}
     }
 }
@@ -0,0 +1,96 @@
+package sf.hrechko.cash;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/*
+ * События JDK Flight Recorder. Включены по умолчанию, но пишутся только во время
+ * записи (java -XX:StartFlightRecording=... или jcmd <pid> JFR.start). Поля
+ * заполняются после shouldCommit(), поэтому без записи событие почти ничего не стоит.
+ */
+final class FlightEvents {
+
+    private FlightEvents() {
+    }
+
+    /* Загрузка снимка БД в init() */
+    @Name("sf.hrechko.cash.Load")
+    @Label("Загрузка БД")
+    @Category({ "Cash", "БД" })
+    static class Load extends Event {
+	@Label("Файл")
+	String path;
+
+	@Label("Пользователей")
+	int users;
+
+	@Label("Размер")
+	@DataAmount
+	long bytes;
+    }
+
+    /* Запись снимка БД в фоне (контрольная точка или close()) */
+    @Name("sf.hrechko.cash.Save")
+    @Label("Сохранение БД")
+    @Category({ "Cash", "БД" })
+    static class Save extends Event {
+	@Label("Файл")
+	String path;
+
+	@Label("Пользователей в снимке")
+	int users;
+
+	@Label("Размер")
+	@DataAmount
+	long bytes;
+
+	@Label("LSN снимка")
+	long lsn;
+
+	@Label("Успешно")
+	boolean saved;
+    }
+
+    /* Денежная операция пользователя */
+    @Name("sf.hrechko.cash.Operation")
+    @Label("Операция")
+    @Category({ "Cash", "Операции" })
+    @StackTrace(false)
+    static class Operation extends Event {
+	@Label("Операция")
+	String operation;
+
+	@Label("Пользователь")
+	String login;
+
+	@Label("Категория")
+	String category;
+
+	@Label("Сумма, коп.")
+	long amount;
+
+	@Label("Получатель")
+	String recipient;
+
+	@Label("Выполнена")
+	boolean done;
+
+	/* Завершает событие и пишет его, если идёт запись */
+	void end(String operation, String login, String category, long amount, String recipient, boolean done) {
+	    end();
+	    if (!shouldCommit())
+		return;
+	    this.operation = operation;
+	    this.login = login;
+	    this.category = category;
+	    this.amount = amount;
+	    this.recipient = recipient;
+	    this.done = done;
+	    commit();
+	}
+    }
+}
@@ -0,0 +1,81 @@
+package sf.hrechko.cash;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * Гистограмма задержек в наносекундах. Значение попадает в корзину по старшему
+ * биту и следующим SUB_BITS битам, поэтому процентили считаются с точностью около
+ * 6% без хранения самих значений. Запись без блокировок из любого числа потоков.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BITS = 4;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    private static final int BUCKETS = (Long.SIZE - SUB_BITS) * SUB_COUNT;
+    private AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private LongAdder count = new LongAdder();
+    private LongAdder sum = new LongAdder();
+    private AtomicLong max = new AtomicLong();
+
+    public void record(long nanos) {
+	long value = Math.max(nanos, 0);
+	buckets.incrementAndGet(bucketOf(value));
+	count.increment();
+	sum.add(value);
+	if (value > max.get())
+	    max.accumulateAndGet(value, Math::max);
+    }
+
+    public long getCount() {
+	return count.sum();
+    }
+
+    public long getMax() {
+	return max.get();
+    }
+
+    public double getMean() {
+	long n = count.sum();
+	return (n == 0) ? 0 : (double) sum.sum() / n;
+    }
+
+    /* Верхняя граница корзины, в которую попал процентиль (0-100) */
+    public long getPercentile(double percentile) {
+	long n = count.sum();
+	if (n == 0)
+	    return 0;
+	long rank = Math.max((long) Math.ceil(n * percentile / 100), 1);
+	long seen = 0;
+	for (int i = 0; i < BUCKETS; ++i) {
+	    seen += buckets.get(i);
+	    if (seen >= rank)
+		return Math.min(upperBound(i), getMax());
+	}
+	return getMax();
+    }
+
+    private static int bucketOf(long value) {
+	if (value < SUB_COUNT)
+	    return (int) value;
+	int exponent = 63 - Long.numberOfLeadingZeros(value);
+	int mantissa = (int) (value >>> (exponent - SUB_BITS)) & (SUB_COUNT - 1);
+	return (exponent - SUB_BITS + 1) * SUB_COUNT + mantissa;
+    }
+
+    private static long upperBound(int bucket) {
+	if (bucket < SUB_COUNT)
+	    return bucket;
+	int shift = bucket / SUB_COUNT - 1;
+	long low = (long) (SUB_COUNT + bucket % SUB_COUNT) << shift;
+	return low + (1L << shift) - 1;
+    }
+
+    @Override
+    public String toString() {
+	return String.format("%d, среднее %.1f мкс, p50 %.1f, p90 %.1f, p99 %.1f, p99.9 %.1f, max %.1f мкс", getCount(),
+		getMean() / 1e3, getPercentile(50) / 1e3, getPercentile(90) / 1e3, getPercentile(99) / 1e3,
+		getPercentile(99.9) / 1e3, getMax() / 1e3);
+    }
+}
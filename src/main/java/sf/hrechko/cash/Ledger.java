@@ -0,0 +1,465 @@
+package sf.hrechko.cash;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Consumer;
+
+/*
+ * Журнал операций пользователей с отметками времени. Записи только дописываются
+ * в сегменты <номер>.seg каталога журнала. Заполненный сегмент закрывается, а
+ * диапазон времени его записей сохраняется в индексе, поэтому выборка за период
+ * читает только сегменты, которые с ним пересекаются.
+ *
+ * Ledger ведёт и суммы по дням и месяцам (Rollups). Они сохраняются в контрольной
+ * точке БД и при закрытии Ledger вместе с позицией в сегментах, до которой учтены
+ * записи; при открытии дочитываются только записи после этой позиции.
+ *
+ * Время записей - микросекунды от начала эпохи. Отметки выдаются строго
+ * возрастающими и служат идентификатором операции при восстановлении из журнала БД.
+ */
+public class Ledger {
+
+    public enum Kind {
+	INCOME, OUTCOME
+    }
+
+    public static class Entry {
+	private long time;
+	private String login;
+	private Kind kind;
+	private String category;
+	private long amount; // в копейках, отрицательная сумма - отмена при удалении категории
+
+	public Entry(long time, String login, Kind kind, String category, long amount) {
+	    this.time = time;
+	    this.login = login;
+	    this.kind = kind;
+	    this.category = category;
+	    this.amount = amount;
+	}
+
+	public long getTime() {
+	    return time;
+	}
+
+	public String getLogin() {
+	    return login;
+	}
+
+	public Kind getKind() {
+	    return kind;
+	}
+
+	public String getCategory() {
+	    return category;
+	}
+
+	public long getAmount() {
+	    return amount;
+	}
+    }
+
+    /* Сегмент и диапазон времени его записей */
+    private static class Segment {
+	private int number;
+	private long minTime = Long.MAX_VALUE;
+	private long maxTime = Long.MIN_VALUE;
+
+	Segment(int number) {
+	    this.number = number;
+	}
+
+	Segment(Segment src) {
+	    number = src.number;
+	    minTime = src.minTime;
+	    maxTime = src.maxTime;
+	}
+
+	void add(long time) {
+	    minTime = Math.min(minTime, time);
+	    maxTime = Math.max(maxTime, time);
+	}
+
+	boolean overlaps(long from, long to) {
+	    return minTime < to && maxTime >= from;
+	}
+    }
+
+    private static final long SEGMENT_SIZE = 4 * 1024 * 1024;
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String INDEX_FILE = "index";
+    private static final String ROLLUPS_FILE = "rollups";
+    private final byte[] INDEX_MAGIC = { 'L', 'I', 'D', 'X' };
+    private final int INDEX_VERSION = 1;
+    private final byte[] ROLLUPS_MAGIC = { 'L', 'R', 'U', 'P' };
+    private final int ROLLUPS_VERSION = 1;
+    private File dir;
+    private long segmentSize;
+    private FileDb indexDb;
+    private FileDb rollupsDb;
+    private Rollups rollups = new Rollups();
+    private int rollupsSegment = 0; // записи до этой позиции учтены в сохранённых суммах
+    private long rollupsOffset = 0;
+    private List<Segment> sealed = new ArrayList<>(); // закрытые сегменты по возрастанию номера
+    private Segment active = null;
+    private FileChannel channel = null;
+    private long activeSize = 0;
+    private long lastTime = 0;
+
+    public Ledger(File dir) {
+	this(dir, SEGMENT_SIZE);
+    }
+
+    /* Сегменты меньшего размера - для проверки закрытия сегментов в тестах */
+    Ledger(File dir, long segmentSize) {
+	this.dir = dir;
+	this.segmentSize = segmentSize;
+	indexDb = new FileDb(new File(dir, INDEX_FILE).getPath());
+	rollupsDb = new FileDb(new File(dir, ROLLUPS_FILE).getPath());
+    }
+
+    public static long toMicros(Instant instant) {
+	return instant.getEpochSecond() * 1_000_000 + instant.getNano() / 1_000;
+    }
+
+    public synchronized boolean open() {
+	if (!dir.isDirectory() && !dir.mkdirs()) {
+	    System.out.format("Ошибка создания каталога %s!\n", dir.getPath());
+	    return false;
+	}
+	if (indexDb.getFile().exists() && !indexDb.load(this::loadIndex))
+	    return false;
+	if (rollupsDb.getFile().exists() && !rollupsDb.load(this::loadRollups))
+	    return false;
+
+	active = new Segment(sealed.isEmpty() ? 0 : sealed.get(sealed.size() - 1).number + 1);
+	File file = segmentFile(active.number);
+	try {
+	    if (file.exists()) {
+		// Запись, оборванная при сбое, отрезается
+		activeSize = readSegment(file, 0, Long.MAX_VALUE, entry -> active.add(entry.time));
+	    }
+
+	    // Суммы дополняются записями, сделанными после их сохранения
+	    for (var segment : sealed) {
+		if (segment.number >= rollupsSegment) {
+		    readSegment(segmentFile(segment.number), rollupsStart(segment.number), Long.MAX_VALUE,
+			    rollups::add);
+		}
+	    }
+	    if (file.exists() && active.number >= rollupsSegment) {
+		readSegment(file, rollupsStart(active.number), activeSize, rollups::add);
+	    }
+	    channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+	    channel.truncate(activeSize);
+	    channel.position(activeSize);
+	} catch (IOException e) {
+	    e.printStackTrace();
+	    return false;
+	}
+
+	for (var segment : sealed) {
+	    lastTime = Math.max(lastTime, segment.maxTime);
+	}
+	lastTime = Math.max(lastTime, active.maxTime);
+	return true;
+    }
+
+    /* Следующая отметка времени: текущее время, но не раньше уже выданных */
+    public synchronized long nextTime() {
+	lastTime = Math.max(lastTime + 1, toMicros(Instant.now()));
+	return lastTime;
+    }
+
+    public void append(Entry... entries) {
+	append(Arrays.asList(entries));
+    }
+
+    public synchronized void append(List<Entry> entries) {
+	if (channel == null || entries.isEmpty())
+	    return;
+
+	try {
+	    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+	    DataOutputStream output = new DataOutputStream(bytes);
+	    for (var entry : entries) {
+		writeEntry(output, entry);
+	    }
+	    ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+	    while (buffer.hasRemaining()) {
+		channel.write(buffer);
+	    }
+	    activeSize += bytes.size();
+	    for (var entry : entries) {
+		active.add(entry.time);
+		rollups.add(entry);
+		lastTime = Math.max(lastTime, entry.time);
+	    }
+	    if (activeSize >= segmentSize) {
+		roll();
+	    }
+	} catch (IOException e) {
+	    e.printStackTrace();
+	}
+    }
+
+    /*
+     * Передаёт consumer записи с временем в [from, to). Записи разных потоков могут
+     * попасть в сегмент не строго по порядку времени, поэтому сегмент читается целиком.
+     */
+    public boolean scan(long from, long to, Consumer<Entry> consumer) {
+	List<Segment> segments;
+	Segment current;
+	long currentSize;
+	synchronized (this) {
+	    segments = new ArrayList<>(sealed);
+	    current = (active != null) ? new Segment(active) : null;
+	    currentSize = activeSize;
+	}
+
+	Consumer<Entry> filter = entry -> {
+	    if (entry.time >= from && entry.time < to)
+		consumer.accept(entry);
+	};
+	try {
+	    for (var segment : segments) {
+		if (segment.overlaps(from, to)) {
+		    readSegment(segmentFile(segment.number), 0, Long.MAX_VALUE, filter);
+		}
+	    }
+	    if (current != null && current.overlaps(from, to)) {
+		readSegment(segmentFile(current.number), 0, currentSize, filter);
+	    }
+	    return true;
+	} catch (IOException e) {
+	    e.printStackTrace();
+	}
+	return false;
+    }
+
+    /* Суммы операций пользователя по категориям за дни с from по to включительно */
+    public Rollups.Report report(String login, LocalDate from, LocalDate to) {
+	return rollups.report(login, from, to);
+    }
+
+    public synchronized boolean force() {
+	if (channel == null)
+	    return false;
+
+	try {
+	    channel.force(false);
+	    return true;
+	} catch (IOException e) {
+	    e.printStackTrace();
+	}
+	return false;
+    }
+
+    /*
+     * Сбрасывает записи на диск и сохраняет суммы. Вызывается из потока контрольной
+     * точки: под блокировкой суммы только копируются в память, запись файла идёт без
+     * неё. false - записи не сброшены на диск.
+     */
+    public boolean checkpoint() {
+	byte[] data;
+	synchronized (this) {
+	    if (channel == null)
+		return false;
+	    rollupsSegment = active.number;
+	    rollupsOffset = activeSize;
+	    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+	    try {
+		writeRollups(bytes);
+	    } catch (IOException e) {
+		e.printStackTrace();
+		return false;
+	    }
+	    data = bytes.toByteArray();
+	}
+	// Записи, учтённые в суммах, должны оказаться на диске раньше сумм
+	if (!force())
+	    return false;
+	if (!rollupsDb.save(output -> {
+	    output.write(data);
+	    return true;
+	})) {
+	    System.out.format("Ошибка сохранения %s!\n", rollupsDb.getFile().getPath());
+	}
+	return true;
+    }
+
+    public synchronized void close() {
+	if (channel == null)
+	    return;
+	try {
+	    channel.force(false);
+	    channel.close();
+	} catch (IOException e) {
+	    e.printStackTrace();
+	}
+	channel = null;
+	saveRollups(active.number, activeSize);
+    }
+
+    /* Закрывает заполненный сегмент и начинает следующий */
+    private void roll() throws IOException {
+	channel.force(true);
+	channel.close();
+	sealed.add(active);
+	if (!indexDb.save(this::saveIndex)) {
+	    System.out.format("Ошибка сохранения индекса %s!\n", indexDb.getFile().getPath());
+	}
+
+	active = new Segment(active.number + 1);
+	activeSize = 0;
+	channel = FileChannel.open(segmentFile(active.number).toPath(), StandardOpenOption.CREATE,
+		StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    private void saveRollups(int segment, long offset) {
+	rollupsSegment = segment;
+	rollupsOffset = offset;
+	if (!rollupsDb.save(this::writeRollups)) {
+	    System.out.format("Ошибка сохранения %s!\n", rollupsDb.getFile().getPath());
+	}
+    }
+
+    private long rollupsStart(int segment) {
+	return (segment == rollupsSegment) ? rollupsOffset : 0;
+    }
+
+    private File segmentFile(int number) {
+	return new File(dir, number + SEGMENT_SUFFIX);
+    }
+
+    /* Читает записи с позиции offset и возвращает конец последней целой записи */
+    private long readSegment(File file, long offset, long limit, Consumer<Entry> consumer) throws IOException {
+	byte[] data = Files.readAllBytes(file.toPath());
+	int length = (int) Math.min(limit, data.length);
+	if (offset >= length)
+	    return offset;
+	DataInputStream input = new DataInputStream(new ByteArrayInputStream(data, (int) offset, length - (int) offset));
+	long position = offset;
+	try {
+	    while (position < length) {
+		Entry entry = readEntry(input);
+		position = length - input.available();
+		consumer.accept(entry);
+	    }
+	} catch (EOFException e) {
+	    // Последняя запись не дописана
+	}
+	return position;
+    }
+
+    private Entry readEntry(DataInputStream input) throws IOException {
+	long time = input.readLong();
+	String login = readStr(input);
+	int kind = input.readByte();
+	String category = readStr(input);
+	long amount = input.readLong();
+	if (kind < 0 || kind >= Kind.values().length)
+	    throw new EOFException();
+	return new Entry(time, login, Kind.values()[kind], category, amount);
+    }
+
+    private void writeEntry(DataOutputStream output, Entry entry) throws IOException {
+	output.writeLong(entry.time);
+	writeStr(output, entry.login);
+	output.writeByte(entry.kind.ordinal());
+	writeStr(output, entry.category);
+	output.writeLong(entry.amount);
+    }
+
+    private String readStr(DataInputStream input) throws IOException {
+	int length = input.readInt();
+	if (length < 0 || length > input.available())
+	    throw new EOFException();
+	byte[] bytes = new byte[length];
+	input.readFully(bytes);
+	return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private void writeStr(DataOutputStream output, String str) throws IOException {
+	byte[] bytes = str.getBytes(StandardCharsets.UTF_8);
+	output.writeInt(bytes.length);
+	output.write(bytes);
+    }
+
+    private boolean loadIndex(InputStream input) throws IOException {
+	DataInputStream dataInput = new DataInputStream(input);
+	byte[] header = new byte[INDEX_MAGIC.length];
+	dataInput.readFully(header);
+	if (!Arrays.equals(header, INDEX_MAGIC) || dataInput.readInt() != INDEX_VERSION) {
+	    System.out.format("Неверный формат индекса %s!\n", indexDb.getFile().getPath());
+	    return false;
+	}
+
+	int segmentNumber = dataInput.readInt();
+	for (int i = 0; i < segmentNumber; ++i) {
+	    Segment segment = new Segment(dataInput.readInt());
+	    segment.minTime = dataInput.readLong();
+	    segment.maxTime = dataInput.readLong();
+	    sealed.add(segment);
+	}
+	return true;
+    }
+
+    private boolean loadRollups(InputStream input) throws IOException {
+	DataInputStream dataInput = new DataInputStream(new BufferedInputStream(input));
+	byte[] header = new byte[ROLLUPS_MAGIC.length];
+	dataInput.readFully(header);
+	if (!Arrays.equals(header, ROLLUPS_MAGIC) || dataInput.readInt() != ROLLUPS_VERSION) {
+	    System.out.format("Неверный формат %s!\n", rollupsDb.getFile().getPath());
+	    return false;
+	}
+
+	rollupsSegment = dataInput.readInt();
+	rollupsOffset = dataInput.readLong();
+	rollups.read(dataInput);
+	return true;
+    }
+
+    private boolean writeRollups(OutputStream output) throws IOException {
+	DataOutputStream dataOutput = new DataOutputStream(output);
+	dataOutput.write(ROLLUPS_MAGIC);
+	dataOutput.writeInt(ROLLUPS_VERSION);
+	dataOutput.writeInt(rollupsSegment);
+	dataOutput.writeLong(rollupsOffset);
+	rollups.write(dataOutput);
+	dataOutput.flush();
+	return true;
+    }
+
+    private boolean saveIndex(OutputStream output) throws IOException {
+	DataOutputStream dataOutput = new DataOutputStream(output);
+	dataOutput.write(INDEX_MAGIC);
+	dataOutput.writeInt(INDEX_VERSION);
+	dataOutput.writeInt(sealed.size());
+	for (var segment : sealed) {
+	    dataOutput.writeInt(segment.number);
+	    dataOutput.writeLong(segment.minTime);
+	    dataOutput.writeLong(segment.maxTime);
+	}
+	dataOutput.flush();
+	return true;
+    }
+}
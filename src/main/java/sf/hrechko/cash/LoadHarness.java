@@ -0,0 +1,226 @@
+package sf.hrechko.cash;
+
+import java.io.ByteArrayInputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import sf.hrechko.cash.UserDb.User;
+
+/*
+ * Нагрузочный прогон через ConsoleUI. Для каждого сеанса составляется ввод
+ * Scanner: вход, случайные пополнения, снятия и переводы, выход. Сеанс
+ * выполняется шагами draw()/input() на общей БД, время операции - от первого
+ * draw() до последнего input() её шагов, вывод меню отбрасывается.
+ *
+ * Рассчитан на БД из WorkloadGenerator, где пароль совпадает с логином. Каждый
+ * поток входит только под своими пользователями, поэтому баланс при составлении
+ * ввода известен и снятия не отклоняются. Получатели переводов выбираются по
+ * закону Ципфа. Сеанс, ввод которого разошёлся с меню, считается ошибкой.
+ */
+public class LoadHarness {
+
+    enum Operation {
+	LOGIN("Вход"), REFILL("Пополнение"), WITHDRAW("Снятие"), TRANSFER("Перевод");
+
+	private String name;
+
+	Operation(String name) {
+	    this.name = name;
+	}
+
+	String getName() {
+	    return name;
+	}
+    }
+
+    /* Ввод сеанса и число шагов draw()/input() каждой операции */
+    private static class Session {
+	private StringBuilder input = new StringBuilder();
+	private List<Operation> operations = new ArrayList<>();
+	private List<Integer> steps = new ArrayList<>();
+
+	void add(Operation operation, int stepCount, Object... tokens) {
+	    operations.add(operation);
+	    steps.add(stepCount);
+	    for (Object token : tokens) {
+		input.append(token).append('\n');
+	    }
+	}
+    }
+
+    private UserDb userDb;
+    private int threadNumber;
+    private int sessionNumber;
+    private int operationsPerSession;
+    private double skew = 1.1;
+    private long seed = 1;
+    private String[] logins;
+    private int[] byRank;
+    private WorkloadGenerator.Zipf recipients;
+    private LatencyHistogram[] latencies = new LatencyHistogram[Operation.values().length];
+    private AtomicLong failedSessions = new AtomicLong();
+
+    public LoadHarness(UserDb userDb, int threadNumber, int sessionNumber, int operationsPerSession) {
+	this.userDb = userDb;
+	this.threadNumber = threadNumber;
+	this.sessionNumber = sessionNumber;
+	this.operationsPerSession = operationsPerSession;
+	for (int i = 0; i < latencies.length; ++i) {
+	    latencies[i] = new LatencyHistogram();
+	}
+    }
+
+    public void setSkew(double skew) {
+	this.skew = skew;
+    }
+
+    public void setSeed(long seed) {
+	this.seed = seed;
+    }
+
+    LatencyHistogram getLatency(Operation operation) {
+	return latencies[operation.ordinal()];
+    }
+
+    public long getFailedSessions() {
+	return failedSessions.get();
+    }
+
+    public boolean run(PrintStream report) {
+	logins = userDb.getLogins().toArray(new String[0]);
+	if (logins.length < 2) {
+	    report.println("Для нагрузки нужно не меньше двух пользователей!");
+	    return false;
+	}
+	Arrays.sort(logins);
+	byRank = WorkloadGenerator.shuffle(logins.length, new Random(seed));
+	recipients = new WorkloadGenerator.Zipf(logins.length, skew);
+
+	int threads = Math.min(threadNumber, logins.length);
+	ExecutorService executor = Executors.newFixedThreadPool(threads);
+	long start = System.nanoTime();
+	for (int thread = 0; thread < threads; ++thread) {
+	    int threadIndex = thread;
+	    executor.execute(() -> runSessions(threadIndex, threads));
+	}
+	executor.shutdown();
+	try {
+	    while (!executor.awaitTermination(1, TimeUnit.SECONDS)) {
+	    }
+	} catch (InterruptedException e) {
+	    executor.shutdownNow();
+	    Thread.currentThread().interrupt();
+	    return false;
+	}
+	double seconds = (System.nanoTime() - start) / 1e9;
+
+	long total = 0;
+	report.format("Сеансов: %d, с ошибками: %d, потоков: %d, за %.1f с\n", sessionNumber, failedSessions.get(),
+		threads, seconds);
+	for (Operation operation : Operation.values()) {
+	    LatencyHistogram latency = getLatency(operation);
+	    total += latency.getCount();
+	    report.format("%s: %s, %.0f оп/с\n", operation.getName(), latency, latency.getCount() / seconds);
+	}
+	report.format("Всего операций: %d, %.0f оп/с\n", total, total / seconds);
+	report.flush();
+	return failedSessions.get() == 0;
+    }
+
+    private void runSessions(int thread, int threads) {
+	Random random = new Random(seed + thread + 1);
+	PrintStream discard = new PrintStream(new OutputStream() {
+	    @Override
+	    public void write(int b) {
+	    }
+
+	    @Override
+	    public void write(byte[] b, int off, int len) {
+	    }
+	}, false, StandardCharsets.UTF_8);
+	for (int i = thread; i < sessionNumber; i += threads) {
+	    // Пользователи потока: thread, thread + threads, ...
+	    int user = thread + threads * random.nextInt((logins.length - thread + threads - 1) / threads);
+	    try {
+		if (!runSession(plan(logins[user], random), discard))
+		    failedSessions.incrementAndGet();
+	    } catch (RuntimeException e) {
+		failedSessions.incrementAndGet();
+	    }
+	}
+    }
+
+    private Session plan(String login, Random random) {
+	User user = userDb.getUser(login);
+	String[] incomes = user.getIncomeNames();
+	String[] outcomes = user.getOutcomeNames();
+	int transferItem = Arrays.asList(outcomes).indexOf("Перевод") + 1;
+	long balance = user.getBalance();
+
+	Session session = new Session();
+	session.add(Operation.LOGIN, 3, 1, login, login);
+	for (int i = 0; i < operationsPerSession; ++i) {
+	    long value = 1 + random.nextInt(10_000);
+	    int choice = random.nextInt(10);
+	    if (choice >= 4 && balance >= value) {
+		if (choice < 7) {
+		    int item = 1 + random.nextInt(outcomes.length);
+		    if (item != transferItem) {
+			session.add(Operation.WITHDRAW, 5, 2, 2, item, Money.toString(value), 1, outcomes.length + 3,
+				4);
+			balance -= value;
+			continue;
+		    }
+		}
+		String toLogin = logins[byRank[recipients.next(random)]];
+		if (!toLogin.equals(login)) {
+		    session.add(Operation.TRANSFER, 5, 2, 2, transferItem, toLogin, Money.toString(value), 1,
+			    outcomes.length + 3, 4);
+		    balance -= value;
+		    continue;
+		}
+	    }
+	    session.add(Operation.REFILL, 5, 1, 2, 1 + random.nextInt(incomes.length), Money.toString(value), 1,
+		    incomes.length + 3, 4);
+	    balance += value;
+	}
+	session.input.append("3\n3\n");
+	return session;
+    }
+
+    /* false, если ввод разошёлся с меню */
+    private boolean runSession(Session session, PrintStream output) {
+	byte[] input = session.input.toString().getBytes(StandardCharsets.UTF_8);
+	ConsoleUI cli = new ConsoleUI(new ByteArrayInputStream(input), StandardCharsets.UTF_8, output);
+	cli.attachToDb(userDb);
+	try {
+	    for (int i = 0; i < session.operations.size(); ++i) {
+		long start = System.nanoTime();
+		for (int step = 0; step < session.steps.get(i); ++step) {
+		    cli.draw();
+		    if (!cli.input())
+			return false;
+		}
+		getLatency(session.operations.get(i)).record(System.nanoTime() - start);
+	    }
+	    // Выход из аккаунта, затем из приложения: только последний input() возвращает false
+	    cli.draw();
+	    if (!cli.input())
+		return false;
+	    cli.draw();
+	    return !cli.input();
+	} catch (NoSuchElementException e) {
+	    return false;
+	}
+    }
+}
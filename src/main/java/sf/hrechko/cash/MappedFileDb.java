@@ -0,0 +1,227 @@
+package sf.hrechko.cash;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
+
+/*
+ * Вариант FileDb, который читает и пишет файл через отображение в память.
+ * Данные не копируются в промежуточные byte[]: чтение идёт прямо из страничного
+ * кэша ОС, а запись - в отображённые окна файла по MAP_CHUNK_SIZE байт.
+ */
+public class MappedFileDb extends FileDb {
+
+    private static final long MAP_CHUNK_SIZE = 64 * 1024 * 1024;
+    /*
+     * sun.misc.Unsafe.invokeCleaner(ByteBuffer) из модуля jdk.unsupported или null,
+     * если он недоступен. Это внутренний API JDK без гарантий совместимости, поэтому
+     * он только ускоряет снятие отображения, а без него окна освобождает сборщик мусора.
+     */
+    private static final Object UNSAFE;
+    private static final Method INVOKE_CLEANER;
+
+    static {
+	Object unsafe = null;
+	Method invokeCleaner = null;
+	try {
+	    Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+	    var field = unsafeClass.getDeclaredField("theUnsafe");
+	    field.setAccessible(true);
+	    unsafe = field.get(null);
+	    invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+	} catch (ReflectiveOperationException | RuntimeException e) {
+	    unsafe = null;
+	    invokeCleaner = null;
+	}
+	UNSAFE = unsafe;
+	INVOKE_CLEANER = invokeCleaner;
+    }
+
+    /*
+     * Снимает отображение сразу, не дожидаясь сборки мусора. Пока окно отображено,
+     * Windows не даёт обрезать и переименовать файл; в Linux и macOS это не мешает,
+     * и отображение достаточно оставить сборщику мусора. Ошибка вызова не считается
+     * ошибкой сохранения. После вызова к буферу обращаться нельзя.
+     */
+    static void unmap(MappedByteBuffer buffer) {
+	if (buffer == null || INVOKE_CLEANER == null)
+	    return;
+	try {
+	    INVOKE_CLEANER.invoke(UNSAFE, buffer);
+	} catch (ReflectiveOperationException | RuntimeException e) {
+	    // Отображение снимет сборщик мусора
+	}
+    }
+
+    private static class MappedInputStream extends InputStream {
+	private FileChannel channel;
+	private long chunkSize;
+	private long size;
+	private long position = 0;
+	private MappedByteBuffer buffer = null;
+
+	MappedInputStream(FileChannel channel, long chunkSize) throws IOException {
+	    this.channel = channel;
+	    this.chunkSize = chunkSize;
+	    size = channel.size();
+	}
+
+	private boolean nextChunk() throws IOException {
+	    if (buffer != null && buffer.hasRemaining())
+		return true;
+	    if (position >= size)
+		return false;
+
+	    unmap(buffer);
+	    buffer = null;
+	    long mapSize = Math.min(chunkSize, size - position);
+	    buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, mapSize);
+	    position += mapSize;
+	    return true;
+	}
+
+	@Override
+	public int read() throws IOException {
+	    if (!nextChunk())
+		return -1;
+	    return buffer.get() & 0xFF;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+	    if (len == 0)
+		return 0;
+	    if (!nextChunk())
+		return -1;
+
+	    int count = Math.min(len, buffer.remaining());
+	    buffer.get(b, off, count);
+	    return count;
+	}
+
+	@Override
+	public void close() {
+	    unmap(buffer);
+	    buffer = null;
+	}
+    }
+
+    private static class MappedOutputStream extends OutputStream {
+	private FileChannel channel;
+	private long chunkSize;
+	private long position = 0;
+	private MappedByteBuffer buffer = null;
+	private boolean closed = false;
+
+	MappedOutputStream(FileChannel channel, long chunkSize) {
+	    this.channel = channel;
+	    this.chunkSize = chunkSize;
+	}
+
+	private void nextChunk() throws IOException {
+	    if (buffer != null) {
+		if (buffer.hasRemaining())
+		    return;
+		buffer.force();
+		position += buffer.capacity();
+		unmap(buffer);
+		buffer = null;
+	    }
+	    buffer = channel.map(FileChannel.MapMode.READ_WRITE, position, chunkSize);
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+	    nextChunk();
+	    buffer.put((byte) b);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+	    while (len > 0) {
+		nextChunk();
+		int count = Math.min(len, buffer.remaining());
+		buffer.put(b, off, count);
+		off += count;
+		len -= count;
+	    }
+	}
+
+	@Override
+	public void close() throws IOException {
+	    if (closed)
+		return;
+	    closed = true;
+
+	    long length = position;
+	    if (buffer != null) {
+		buffer.force();
+		length += buffer.position();
+		unmap(buffer);
+		buffer = null;
+	    }
+	    // Файл был расширен до конца последнего окна, отрезаем лишнее. Окно уже
+	    // не отображено, иначе на Windows truncate() завершится ошибкой
+	    channel.truncate(length);
+	}
+    }
+
+    private long chunkSize;
+
+    public MappedFileDb(String filePath) {
+	this(filePath, MAP_CHUNK_SIZE);
+    }
+
+    /* Окна меньшего размера - для проверки границ окон в тестах */
+    MappedFileDb(String filePath, long chunkSize) {
+	super(filePath);
+	this.chunkSize = chunkSize;
+    }
+
+    @Override
+    public boolean load(StreamReader reader) {
+	try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		InputStream input = new MappedInputStream(channel, chunkSize)) {
+	    return reader.read(input);
+	} catch (NoSuchFileException e) {
+	    System.out.format("Файл %s не найден!\n", file.getName());
+	} catch (IOException e) {
+	    e.printStackTrace();
+	}
+	return false;
+    }
+
+    @Override
+    public boolean save(StreamWriter writer) {
+	File tmpFile = getTmpFile();
+	try {
+	    boolean written;
+	    try (FileChannel channel = openTmpChannel(tmpFile)) {
+		try (OutputStream output = new MappedOutputStream(channel, chunkSize)) {
+		    written = writer.write(output);
+		}
+		channel.force(true);
+	    }
+	    if (written) {
+		replaceWith(tmpFile);
+		return true;
+	    }
+	} catch (IOException e) {
+	    e.printStackTrace();
+	}
+	tmpFile.delete();
+	return false;
+    }
+
+    private FileChannel openTmpChannel(File tmpFile) throws IOException {
+	return FileChannel.open(tmpFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+		StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+    }
+}
@@ -0,0 +1,181 @@
+package sf.hrechko.cash;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+/*
+ * Метрики БД: счётчики, показатели и гистограммы задержек. После register()
+ * доступны как MBean sf.hrechko.cash:type=Metrics,name=<имя> только для чтения,
+ * например в jconsole. Гистограмма <имя> даёт атрибуты <имя>Count,
+ * <имя>MeanMicros, <имя>P50Micros, <имя>P99Micros и <имя>MaxMicros.
+ */
+public class Metrics implements DynamicMBean {
+
+    /* Гистограммы */
+    public static final String LOAD = "load";
+    public static final String SAVE = "save";
+    public static final String LOGIN = "login";
+    public static final String REFILL = "refill";
+    public static final String WITHDRAW = "withdraw";
+    public static final String TRANSFER = "transfer";
+    /* Счётчики отклонённых операций */
+    public static final String SAVE_FAILED = "saveFailed";
+    public static final String LOGIN_REJECTED = "loginRejected";
+    public static final String WITHDRAW_REJECTED = "withdrawRejected";
+    public static final String TRANSFER_REJECTED = "transferRejected";
+
+    private Map<String, LongAdder> counters = new ConcurrentHashMap<>();
+    private Map<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+    private Map<String, LatencyHistogram> histograms = new ConcurrentHashMap<>();
+    private ObjectName objectName = null;
+
+    public void increment(String name) {
+	counter(name).increment();
+    }
+
+    public long getCounter(String name) {
+	return counter(name).sum();
+    }
+
+    public void gauge(String name, LongSupplier value) {
+	gauges.put(name, value);
+    }
+
+    public LatencyHistogram histogram(String name) {
+	return histograms.computeIfAbsent(name, key -> new LatencyHistogram());
+    }
+
+    /* Время от start (System.nanoTime()) до текущего момента */
+    public void record(String name, long start) {
+	histogram(name).record(System.nanoTime() - start);
+    }
+
+    LongAdder counter(String name) {
+	return counters.computeIfAbsent(name, key -> new LongAdder());
+    }
+
+    public boolean register(String name) {
+	MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+	try {
+	    ObjectName beanName = new ObjectName("sf.hrechko.cash:type=Metrics,name=" + ObjectName.quote(name));
+	    if (server.isRegistered(beanName))
+		server.unregisterMBean(beanName);
+	    server.registerMBean(this, beanName);
+	    objectName = beanName;
+	    return true;
+	} catch (JMException e) {
+	    e.printStackTrace();
+	    return false;
+	}
+    }
+
+    public void unregister() {
+	if (objectName == null)
+	    return;
+	try {
+	    ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+	} catch (JMException e) {
+	    e.printStackTrace();
+	}
+	objectName = null;
+    }
+
+    /* Атрибут MBean -> текущее значение, по алфавиту */
+    private Map<String, Supplier<Object>> attributes() {
+	Map<String, Supplier<Object>> values = new TreeMap<>();
+	for (var counter : counters.entrySet()) {
+	    values.put(counter.getKey(), () -> counter.getValue().sum());
+	}
+	for (var gauge : gauges.entrySet()) {
+	    values.put(gauge.getKey(), () -> gauge.getValue().getAsLong());
+	}
+	for (var entry : histograms.entrySet()) {
+	    String name = entry.getKey();
+	    LatencyHistogram histogram = entry.getValue();
+	    values.put(name + "Count", histogram::getCount);
+	    values.put(name + "MeanMicros", () -> histogram.getMean() / 1e3);
+	    values.put(name + "P50Micros", () -> histogram.getPercentile(50) / 1e3);
+	    values.put(name + "P99Micros", () -> histogram.getPercentile(99) / 1e3);
+	    values.put(name + "MaxMicros", () -> histogram.getMax() / 1e3);
+	}
+	return values;
+    }
+
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+	Supplier<Object> value = attributes().get(attribute);
+	if (value == null)
+	    throw new AttributeNotFoundException(attribute);
+	return value.get();
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] names) {
+	Map<String, Supplier<Object>> values = attributes();
+	AttributeList list = new AttributeList();
+	for (String name : names) {
+	    Supplier<Object> value = values.get(name);
+	    if (value != null)
+		list.add(new Attribute(name, value.get()));
+	}
+	return list;
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+	throw new AttributeNotFoundException("Атрибут только для чтения: " + attribute.getName());
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+	return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+	throw new ReflectionException(new NoSuchMethodException(actionName));
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+	Map<String, Supplier<Object>> values = attributes();
+	MBeanAttributeInfo[] infos = new MBeanAttributeInfo[values.size()];
+	int i = 0;
+	for (var value : values.entrySet()) {
+	    String type = value.getKey().endsWith("Micros") ? Double.class.getName() : Long.class.getName();
+	    infos[i++] = new MBeanAttributeInfo(value.getKey(), type, value.getKey(), true, false, false);
+	}
+	return new MBeanInfo(getClass().getName(), "Метрики БД пользователей", infos, null, null, null);
+    }
+
+    @Override
+    public String toString() {
+	StringBuilder text = new StringBuilder();
+	for (var histogram : new TreeMap<>(histograms).entrySet()) {
+	    text.append(histogram.getKey()).append(": ").append(histogram.getValue()).append('\n');
+	}
+	for (var counter : new TreeMap<>(counters).entrySet()) {
+	    text.append(counter.getKey()).append(": ").append(counter.getValue().sum()).append('\n');
+	}
+	for (var gauge : new TreeMap<>(gauges).entrySet()) {
+	    text.append(gauge.getKey()).append(": ").append(gauge.getValue().getAsLong()).append('\n');
+	}
+	return text.toString();
+    }
+}
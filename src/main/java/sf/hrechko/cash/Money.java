@@ -0,0 +1,108 @@
+package sf.hrechko.cash;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+
+/*
+ * Денежные суммы хранятся в копейках (long). Форматирование и разбор не зависят
+ * от локали: дробная часть отделяется точкой, при разборе допускается и запятая.
+ */
+public final class Money {
+
+    public static final int MAX_LENGTH = 24; // "-92233720368547758.08" и запас
+    private static final int SCALE = 100;
+    private static final int MAX_UNITS_DIGITS = 16;
+
+    private Money() {
+    }
+
+    public static long of(long units) {
+	return Math.multiplyExact(units, SCALE);
+    }
+
+    public static long parse(String str) {
+	return parse(str.toCharArray(), 0, str.length());
+    }
+
+    public static long parse(char[] buffer, int offset, int length) {
+	int pos = offset;
+	int end = offset + length;
+	boolean negative = false;
+	if (pos < end && (buffer[pos] == '-' || buffer[pos] == '+')) {
+	    negative = buffer[pos] == '-';
+	    pos++;
+	}
+
+	long units = 0;
+	int unitsDigits = 0;
+	while (pos < end && isDigit(buffer[pos]) && unitsDigits < MAX_UNITS_DIGITS) {
+	    units = units * 10 + (buffer[pos++] - '0');
+	    unitsDigits++;
+	}
+
+	long cents = 0;
+	int centsDigits = 0;
+	if (pos < end && (buffer[pos] == '.' || buffer[pos] == ',')) {
+	    pos++;
+	    while (pos < end && isDigit(buffer[pos]) && centsDigits < 2) {
+		cents = cents * 10 + (buffer[pos++] - '0');
+		centsDigits++;
+	    }
+	}
+
+	if (pos != end || unitsDigits + centsDigits == 0)
+	    return parseSlow(buffer, offset, length);
+
+	if (centsDigits == 1)
+	    cents *= 10;
+	long value = units * SCALE + cents;
+	return negative ? -value : value;
+    }
+
+    /* Редкие случаи: больше двух знаков после запятой или экспонента (старые записи с double) */
+    private static long parseSlow(char[] buffer, int offset, int length) {
+	String str = new String(buffer, offset, length);
+	try {
+	    return new BigDecimal(str.replace(',', '.')).movePointRight(2).setScale(0, RoundingMode.HALF_UP)
+		    .longValueExact();
+	} catch (NumberFormatException | ArithmeticException e) {
+	    throw new NumberFormatException("Неверная сумма: " + str);
+	}
+    }
+
+    /*
+     * Записывает сумму в начало buffer (не короче MAX_LENGTH) и возвращает длину
+     * записанного. Вычисления идут в отрицательных числах, чтобы не переполниться
+     * на Long.MIN_VALUE.
+     */
+    public static int format(long value, char[] buffer) {
+	boolean negative = value < 0;
+	long rest = negative ? value : -value;
+	int pos = MAX_LENGTH;
+
+	int cents = (int) -(rest % SCALE);
+	rest /= SCALE;
+	buffer[--pos] = (char) ('0' + cents % 10);
+	buffer[--pos] = (char) ('0' + cents / 10);
+	buffer[--pos] = '.';
+	do {
+	    buffer[--pos] = (char) ('0' - rest % 10);
+	    rest /= 10;
+	} while (rest != 0);
+	if (negative)
+	    buffer[--pos] = '-';
+
+	int length = MAX_LENGTH - pos;
+	System.arraycopy(buffer, pos, buffer, 0, length);
+	return length;
+    }
+
+    public static String toString(long value) {
+	char[] buffer = new char[MAX_LENGTH];
+	return new String(buffer, 0, format(value, buffer));
+    }
+
+    private static boolean isDigit(char ch) {
+	return ch >= '0' && ch <= '9';
+    }
+}
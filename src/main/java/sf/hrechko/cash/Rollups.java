@@ -0,0 +1,160 @@
+package sf.hrechko.cash;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+ * Суммы операций по категориям за каждый день и каждый месяц, отдельно для
+ * каждого пользователя. Обновляются при каждой записи в Ledger, поэтому отчёт за
+ * период складывается из сумм целых месяцев и отдельных дней на краях периода.
+ * Дни считаются в часовом поясе системы.
+ */
+public class Rollups {
+
+    /* Суммы по категориям доходов и расходов */
+    public static class Report {
+	private Map<String, Long> incomes = new LinkedHashMap<>();
+	private Map<String, Long> outcomes = new LinkedHashMap<>();
+
+	public Map<String, Long> getIncomes() {
+	    return incomes;
+	}
+
+	public Map<String, Long> getOutcomes() {
+	    return outcomes;
+	}
+
+	void add(Ledger.Kind kind, String category, long amount) {
+	    (kind == Ledger.Kind.INCOME ? incomes : outcomes).merge(category, amount, Long::sum);
+	}
+
+	void add(Report report) {
+	    report.incomes.forEach((category, amount) -> incomes.merge(category, amount, Long::sum));
+	    report.outcomes.forEach((category, amount) -> outcomes.merge(category, amount, Long::sum));
+	}
+    }
+
+    /* Суммы одного пользователя: день (номер дня от эпохи) и месяц (год * 12 + месяц) */
+    private static class UserRollup {
+	private NavigableMap<Long, Report> days = new TreeMap<>();
+	private NavigableMap<Long, Report> months = new TreeMap<>();
+
+	synchronized void add(LocalDate date, Ledger.Kind kind, String category, long amount) {
+	    days.computeIfAbsent(date.toEpochDay(), day -> new Report()).add(kind, category, amount);
+	    months.computeIfAbsent(monthOf(date), month -> new Report()).add(kind, category, amount);
+	}
+
+	synchronized void collect(NavigableMap<Long, Report> periods, long from, long to, Report report) {
+	    if (from > to)
+		return;
+	    for (var period : periods.subMap(from, true, to, true).values()) {
+		report.add(period);
+	    }
+	}
+    }
+
+    private ZoneId zone = ZoneId.systemDefault();
+    private Map<String, UserRollup> users = new ConcurrentHashMap<>();
+
+    public void add(Ledger.Entry entry) {
+	LocalDate date = Instant.ofEpochSecond(entry.getTime() / 1_000_000).atZone(zone).toLocalDate();
+	users.computeIfAbsent(entry.getLogin(), login -> new UserRollup()).add(date, entry.getKind(),
+		entry.getCategory(), entry.getAmount());
+    }
+
+    /* Суммы пользователя за дни с from по to включительно */
+    public Report report(String login, LocalDate from, LocalDate to) {
+	Report report = new Report();
+	UserRollup rollup = users.get(login);
+	if (rollup == null || from.isAfter(to))
+	    return report;
+
+	// Целые месяцы внутри периода берутся из месячных сумм, края - из дневных
+	LocalDate firstMonth = (from.getDayOfMonth() == 1) ? from : from.withDayOfMonth(1).plusMonths(1);
+	LocalDate lastMonth = to.withDayOfMonth(1);
+	if (to.getDayOfMonth() != to.lengthOfMonth())
+	    lastMonth = lastMonth.minusMonths(1);
+
+	if (firstMonth.isAfter(lastMonth)) {
+	    rollup.collect(rollup.days, from.toEpochDay(), to.toEpochDay(), report);
+	} else {
+	    rollup.collect(rollup.days, from.toEpochDay(), firstMonth.toEpochDay() - 1, report);
+	    rollup.collect(rollup.months, monthOf(firstMonth), monthOf(lastMonth), report);
+	    rollup.collect(rollup.days, lastMonth.plusMonths(1).toEpochDay(), to.toEpochDay(), report);
+	}
+	return report;
+    }
+
+    /* Сохраняются только дневные суммы, месячные восстанавливаются из них */
+    void write(DataOutputStream output) throws IOException {
+	output.writeInt(users.size());
+	for (var user : users.entrySet()) {
+	    UserRollup rollup = user.getValue();
+	    synchronized (rollup) {
+		writeStr(output, user.getKey());
+		output.writeInt(rollup.days.size());
+		for (var day : rollup.days.entrySet()) {
+		    output.writeLong(day.getKey());
+		    writeAmounts(output, day.getValue().incomes);
+		    writeAmounts(output, day.getValue().outcomes);
+		}
+	    }
+	}
+    }
+
+    void read(DataInputStream input) throws IOException {
+	int userNumber = input.readInt();
+	for (int i = 0; i < userNumber; ++i) {
+	    UserRollup rollup = users.computeIfAbsent(readStr(input), login -> new UserRollup());
+	    int dayNumber = input.readInt();
+	    for (int j = 0; j < dayNumber; ++j) {
+		LocalDate date = LocalDate.ofEpochDay(input.readLong());
+		readAmounts(input, rollup, date, Ledger.Kind.INCOME);
+		readAmounts(input, rollup, date, Ledger.Kind.OUTCOME);
+	    }
+	}
+    }
+
+    private static long monthOf(LocalDate date) {
+	return date.getYear() * 12L + date.getMonthValue() - 1;
+    }
+
+    private void writeAmounts(DataOutputStream output, Map<String, Long> amounts) throws IOException {
+	output.writeInt(amounts.size());
+	for (var amount : amounts.entrySet()) {
+	    writeStr(output, amount.getKey());
+	    output.writeLong(amount.getValue());
+	}
+    }
+
+    private void readAmounts(DataInputStream input, UserRollup rollup, LocalDate date, Ledger.Kind kind)
+	    throws IOException {
+	int number = input.readInt();
+	for (int i = 0; i < number; ++i) {
+	    String category = readStr(input);
+	    rollup.add(date, kind, category, input.readLong());
+	}
+    }
+
+    private String readStr(DataInputStream input) throws IOException {
+	byte[] bytes = new byte[input.readInt()];
+	input.readFully(bytes);
+	return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private void writeStr(DataOutputStream output, String str) throws IOException {
+	byte[] bytes = str.getBytes(StandardCharsets.UTF_8);
+	output.writeInt(bytes.length);
+	output.write(bytes);
+    }
+}
@@ -0,0 +1,225 @@
+package sf.hrechko.cash;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.Collection;
+import java.util.Map;
+
+import sf.hrechko.cash.UserDb.CashCategory;
+import sf.hrechko.cash.UserDb.User;
+
+/*
+ * Пакетный режим без меню: команды читаются по одной в строке, поля разделяются
+ * пробелами, строки с # и пустые строки пропускаются.
+ *   register <логин> <пароль>
+ *   login <логин> <пароль>
+ *   logout
+ *   refill <сумма> [категория доходов]      - по умолчанию Пополнение
+ *   withdraw <сумма> [категория расходов]   - по умолчанию Снятие
+ *   transfer <логин> <сумма>
+ *   report [дд.мм.гггг дд.мм.гггг]          - суммы по категориям, всего или за период
+ * На каждую команду выводится одна строка результата (отчёт - несколько), ошибки
+ * начинаются с номера строки. Вывод буферизуется и сбрасывается в конце.
+ */
+public class ScriptRunner {
+
+    private UserDb userDb;
+    private PrintStream out;
+    private User user = null;
+    private long commands = 0;
+    private long errors = 0;
+
+    public ScriptRunner(UserDb userDb, PrintStream output) {
+	this.userDb = userDb;
+	out = output;
+    }
+
+    public long getCommands() {
+	return commands;
+    }
+
+    public long getErrors() {
+	return errors;
+    }
+
+    public boolean run(BufferedReader reader) {
+	long start = System.nanoTime();
+	try {
+	    long lineNumber = 0;
+	    String line;
+	    while ((line = reader.readLine()) != null) {
+		lineNumber++;
+		String command = line.trim();
+		if (command.isEmpty() || command.startsWith("#"))
+		    continue;
+		commands++;
+		String error = execute(command.split("\\s+"));
+		if (error != null) {
+		    errors++;
+		    out.format("Строка %d: %s: %s\n", lineNumber, command, error);
+		}
+	    }
+	} catch (IOException e) {
+	    e.printStackTrace();
+	    return false;
+	} finally {
+	    double seconds = (System.nanoTime() - start) / 1e9;
+	    out.format("Выполнено команд: %d, ошибок: %d за %.1f с (%.0f команд/с)\n", commands, errors, seconds,
+		    commands / Math.max(seconds, 1e-9));
+	    out.flush();
+	}
+	return true;
+    }
+
+    /* Возвращает описание ошибки или null */
+    private String execute(String[] args) {
+	try {
+	    switch (args[0]) {
+	    case "register":
+		return register(args);
+	    case "login":
+		return login(args);
+	    case "logout":
+		user = null;
+		return null;
+	    case "refill":
+		return refill(args);
+	    case "withdraw":
+		return withdraw(args);
+	    case "transfer":
+		return transfer(args);
+	    case "report":
+		return report(args);
+	    default:
+		return "неизвестная команда";
+	    }
+	} catch (NumberFormatException e) {
+	    return "неверная сумма";
+	} catch (DateTimeParseException e) {
+	    return "неверная дата";
+	}
+    }
+
+    private String register(String[] args) {
+	if (args.length != 3)
+	    return "ожидается register <логин> <пароль>";
+	if (!userDb.addUser(userDb.new User(args[1], args[2])))
+	    return "пользователь уже существует";
+	out.format("Пользователь %s добавлен\n", args[1]);
+	return null;
+    }
+
+    private String login(String[] args) {
+	if (args.length != 3)
+	    return "ожидается login <логин> <пароль>";
+	User found = userDb.login(args[1], args[2]);
+	if (found == null)
+	    return userDb.isUserPresent(args[1]) ? "неверный пароль" : "пользователь не найден";
+	user = found;
+	return null;
+    }
+
+    private String refill(String[] args) {
+	if (user == null)
+	    return "нет входа";
+	if (args.length < 2 || args.length > 3)
+	    return "ожидается refill <сумма> [категория]";
+	long value = parseAmount(args[1]);
+	String category = (args.length == 3) ? args[2] : "Пополнение";
+	if (user.getIncomeByName(category) == null)
+	    return "категория не найдена";
+	if (!user.refill(userDb.new CashCategory(category, value)))
+	    return "ошибка записи журнала БД";
+	out.format("%s: %s +%s, баланс %s\n", user.getLogin(), category, Money.toString(value),
+		Money.toString(user.getBalance()));
+	return null;
+    }
+
+    private String withdraw(String[] args) {
+	if (user == null)
+	    return "нет входа";
+	if (args.length < 2 || args.length > 3)
+	    return "ожидается withdraw <сумма> [категория]";
+	long value = parseAmount(args[1]);
+	String category = (args.length == 3) ? args[2] : "Снятие";
+	// Переводы списываются только командой transfer
+	if (user.getOutcomeByName(category) == null || category.equals("Перевод"))
+	    return "категория не найдена";
+	if (!user.withdraw(userDb.new CashCategory(category, value)))
+	    return rejected(value);
+	out.format("%s: %s -%s, баланс %s\n", user.getLogin(), category, Money.toString(value),
+		Money.toString(user.getBalance()));
+	return null;
+    }
+
+    private String transfer(String[] args) {
+	if (user == null)
+	    return "нет входа";
+	if (args.length != 3)
+	    return "ожидается transfer <логин> <сумма>";
+	long value = parseAmount(args[2]);
+	User toUser = userDb.getUser(args[1]);
+	if (toUser == null || toUser.equals(user)) {
+	    userDb.getMetrics().increment(Metrics.TRANSFER_REJECTED);
+	    return "пользователь не найден";
+	}
+	if (!userDb.transfer(user, toUser, value))
+	    return rejected(value);
+	out.format("%s: перевод %s пользователю %s, баланс %s\n", user.getLogin(), Money.toString(value),
+		toUser.getLogin(), Money.toString(user.getBalance()));
+	return null;
+    }
+
+    /* Списание отклоняется из-за нехватки средств или если не удалась запись журнала */
+    private String rejected(long value) {
+	return (user.getBalance() < value) ? "недостаточно средств на балансе" : "ошибка записи журнала БД";
+    }
+
+    /* Сумма операции; неположительная отклоняется как неверная */
+    private static long parseAmount(String text) {
+	long amount = Money.parse(text);
+	if (amount <= 0)
+	    throw new NumberFormatException("Сумма должна быть больше нуля: " + text);
+	return amount;
+    }
+
+    private String report(String[] args) {
+	if (user == null)
+	    return "нет входа";
+	if (args.length == 1) {
+	    out.format("%s: баланс %s\n", user.getLogin(), Money.toString(user.getBalance()));
+	    writeCategories("Доходы", user.getIncomes());
+	    writeCategories("Расходы", user.getOutcomes());
+	    return null;
+	}
+	if (args.length != 3)
+	    return "ожидается report [дд.мм.гггг дд.мм.гггг]";
+
+	LocalDate from = LocalDate.parse(args[1], ConsoleUI.DATE_FORMAT);
+	LocalDate to = LocalDate.parse(args[2], ConsoleUI.DATE_FORMAT);
+	Rollups.Report report = userDb.getReport(user, from, to);
+	out.format("%s: за %s - %s\n", user.getLogin(), args[1], args[2]);
+	writeAmounts("Доходы", report.getIncomes());
+	writeAmounts("Расходы", report.getOutcomes());
+	return null;
+    }
+
+    private void writeCategories(String title, Collection<CashCategory> categories) {
+	out.format("  %s:", title);
+	for (var category : categories) {
+	    out.format(" %s %s;", category.getName(), Money.toString(category.getValue()));
+	}
+	out.println();
+    }
+
+    private void writeAmounts(String title, Map<String, Long> amounts) {
+	out.format("  %s:", title);
+	for (var amount : amounts.entrySet()) {
+	    out.format(" %s %s;", amount.getKey(), Money.toString(amount.getValue()));
+	}
+	out.println();
+    }
+}
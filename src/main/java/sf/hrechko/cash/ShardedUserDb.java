@@ -0,0 +1,241 @@
+package sf.hrechko.cash;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * БД пользователей, в которой каждый пользователь хранится в отдельном файле
+ * (шарде) каталога БД. При запуске читается только индекс логинов, а данные
+ * пользователя загружаются при первом обращении через getUser(). При сохранении
+ * записываются только изменённые пользователи. Загруженные пользователи не
+ * вытесняются: сеансы держат ссылку на User, и повторная загрузка шарда дала бы
+ * второй объект того же пользователя.
+ */
+public class ShardedUserDb extends UserDb {
+
+    private static final String INDEX_FILE = "index";
+    private static final String SHARD_SUFFIX = ".user";
+    private static final String LEDGER_DIR = "ledger";
+    private final byte[] INDEX_MAGIC = { 'C', 'I', 'D', 'X' };
+    private final int INDEX_VERSION = BINARY_VERSION; // версия индекса совпадает с версией формата шардов
+    private File dir;
+    private Map<String, Integer> shardIndex = new ConcurrentHashMap<>();
+    private AtomicInteger nextShard = new AtomicInteger();
+    private int shardVersion = INDEX_VERSION;
+
+    /* В снимок попадают только изменённые пользователи и копия индекса */
+    private class ShardSnapshot extends Snapshot {
+	private Map<String, Integer> index;
+    }
+
+    public ShardedUserDb(String dirPath) {
+	super(new FileDb(new File(dirPath, INDEX_FILE).getPath()));
+	dir = new File(dirPath);
+    }
+
+    @Override
+    protected boolean loadUsers() {
+	if (!db.getFile().exists()) {
+	    if (!dir.isDirectory() && !dir.mkdirs()) {
+		System.out.format("Ошибка создания каталога БД %s!\n", dir.getName());
+		return false;
+	    }
+	    if (!db.save(output -> saveIndex(output, shardIndex, getLastLsn())))
+		return false;
+	}
+	if (!db.load(this::loadIndex))
+	    return false;
+
+	if (shardVersion < INDEX_VERSION) {
+	    // Шарды старого формата один раз переписываются целиком
+	    for (String login : new ArrayList<>(shardIndex.keySet())) {
+		if (getUser(login) == null)
+		    return false;
+		changedUsers.add(login);
+	    }
+	    shardVersion = INDEX_VERSION;
+	    return saveUsers();
+	}
+	return true;
+    }
+
+    @Override
+    protected Snapshot takeSnapshot() {
+	ShardSnapshot snapshot = new ShardSnapshot();
+	snapshot.lsn = getLastLsn();
+	snapshot.index = new HashMap<>(shardIndex);
+	for (String login : changedUsers) {
+	    User user = getCachedUser(login);
+	    if (user != null) {
+		snapshot.users.add(user.copyForSnapshot());
+	    }
+	}
+	changedUsers.clear();
+	return snapshot;
+    }
+
+    @Override
+    protected boolean saveUsers(Snapshot snapshot) {
+	Map<String, Integer> index = ((ShardSnapshot) snapshot).index;
+	boolean saved = true;
+	for (User user : snapshot.users) {
+	    saved = getShardDb(index.get(user.getLogin())).save(output -> {
+		CountingOutputStream counted = new CountingOutputStream(output);
+		DataOutputStream dataOutput = new DataOutputStream(counted);
+		try {
+		    writeBinaryUser(dataOutput, user);
+		    dataOutput.flush();
+		} finally {
+		    snapshot.bytes += counted.getCount();
+		}
+		return true;
+	    });
+	    if (!saved)
+		break;
+	}
+	// Индекс пишется после шардов, чтобы не ссылаться на несохранённых пользователей
+	if (saved && db.save(output -> {
+	    CountingOutputStream counted = new CountingOutputStream(output);
+	    try {
+		return saveIndex(counted, index, snapshot.lsn);
+	    } finally {
+		snapshot.bytes += counted.getCount();
+	    }
+	}))
+	    return true;
+
+	// Пользователи будут записаны следующим снимком
+	for (User user : snapshot.users) {
+	    changedUsers.add(user.getLogin());
+	}
+	return false;
+    }
+
+    @Override
+    protected void userAdded(User user) {
+	shardIndex.put(user.getLogin(), nextShard.getAndIncrement());
+    }
+
+    @Override
+    protected void userRemoved(User user) {
+	shardIndex.remove(user.getLogin());
+	changedUsers.remove(user.getLogin());
+    }
+
+    @Override
+    protected File getLedgerDir() {
+	return new File(dir, LEDGER_DIR);
+    }
+
+    @Override
+    Collection<String> getLogins() {
+	return shardIndex.keySet();
+    }
+
+    @Override
+    public boolean isUserPresent(String user) {
+	return shardIndex.containsKey(user);
+    }
+
+    @Override
+    public User getUser(String name) {
+	User user = getCachedUser(name);
+	if (user != null || !shardIndex.containsKey(name))
+	    return user;
+	return loadUser(name);
+    }
+
+    /* Шард загружается одним потоком, остальные получают уже загруженного пользователя */
+    private synchronized User loadUser(String name) {
+	User user = getCachedUser(name);
+	if (user != null)
+	    return user;
+
+	User[] loaded = new User[1];
+	if (!getShardDb(shardIndex.get(name)).load(input -> {
+	    loaded[0] = readBinaryUser(new DataInputStream(new BufferedInputStream(input)), shardVersion);
+	    return true;
+	}))
+	    return null;
+	loaded[0].checkBalance();
+	users.put(name, loaded[0]);
+	return loaded[0];
+    }
+
+    @Override
+    public boolean export(FileDb target, Format targetFormat) {
+	for (String login : new ArrayList<>(shardIndex.keySet())) {
+	    getUser(login);
+	}
+	return super.export(target, targetFormat);
+    }
+
+    public boolean importUsers(UserDb source) {
+	for (User srcUser : source.getUsers()) {
+	    User user = new User(srcUser.getLogin(), "");
+	    user.copyFrom(srcUser);
+	    if (!addUser(user))
+		System.out.format("Пользователь %s уже существует!\n", srcUser.getLogin());
+	}
+	return checkpoint();
+    }
+
+    private User getCachedUser(String login) {
+	return users.get(login);
+    }
+
+    private FileDb getShardDb(int shard) {
+	return new FileDb(new File(dir, shard + SHARD_SUFFIX).getPath());
+    }
+
+    private boolean loadIndex(InputStream input) throws IOException {
+	DataInputStream dataInput = new DataInputStream(new BufferedInputStream(input));
+	byte[] header = new byte[INDEX_MAGIC.length];
+	dataInput.readFully(header);
+	int version = dataInput.readInt();
+	if (!Arrays.equals(header, INDEX_MAGIC) || version < 1 || version > INDEX_VERSION) {
+	    System.out.format("Неверный формат индекса %s!\n", db.getFile().getPath());
+	    return false;
+	}
+
+	shardVersion = version;
+	// LSN шарда может быть больше: шарды пишутся до индекса, а их записи ещё в журнале
+	if (version >= 3) {
+	    snapshotLsn = dataInput.readLong();
+	}
+	int userNumber = dataInput.readInt();
+	for (int i = 0; i < userNumber; ++i) {
+	    String login = readBinaryStr(dataInput);
+	    int shard = dataInput.readInt();
+	    shardIndex.put(login, shard);
+	    nextShard.accumulateAndGet(shard + 1, Math::max);
+	}
+	return true;
+    }
+
+    private boolean saveIndex(OutputStream output, Map<String, Integer> index, long lsn) throws IOException {
+	DataOutputStream dataOutput = new DataOutputStream(output);
+	dataOutput.write(INDEX_MAGIC);
+	dataOutput.writeInt(INDEX_VERSION);
+	dataOutput.writeLong(lsn);
+	dataOutput.writeInt(index.size());
+	for (var entry : index.entrySet()) {
+	    writeBinaryStr(dataOutput, entry.getKey());
+	    dataOutput.writeInt(entry.getValue());
+	}
+	dataOutput.flush();
+	return true;
+    }
+}
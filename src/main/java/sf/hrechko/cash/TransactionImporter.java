@@ -0,0 +1,283 @@
+package sf.hrechko.cash;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+
+import sf.hrechko.cash.UserDb.User;
+
+/*
+ * Пакетный импорт операций из выписок. Каждая строка - одна операция:
+ *   CSV:   логин,категория,сумма (первая строка может быть заголовком login,...)
+ *   JSONL: {"login": "...", "category": "...", "amount": "..."}
+ * Положительная сумма зачисляется в доходы категории, отрицательная - в расходы.
+ * Файл читается блоками по CHUNK_LINES строк, блоки разбираются параллельно, а
+ * операции блока применяются к каждому пользователю одним пакетом. Отклонённые
+ * строки с причиной записываются в файл <выписка>.rejected.
+ */
+public class TransactionImporter {
+
+    public enum Format {
+	CSV, JSONL
+    }
+
+    private static final int CHUNK_LINES = 10_000;
+    private static final String REJECTED_SUFFIX = ".rejected";
+    private final JsonFactory jsonFactory = new JsonFactory();
+    private UserDb userDb;
+    private int threads;
+    private AtomicLong imported = new AtomicLong();
+    private AtomicLong rejected = new AtomicLong();
+    private PrintWriter rejectedOutput = null;
+
+    /* Операции одного пользователя из блока */
+    private static class Batch {
+	UserDb.Posting posting = new UserDb.Posting();
+	List<Long> lineNumbers = new ArrayList<>();
+    }
+
+    public TransactionImporter(UserDb userDb, int threads) {
+	this.userDb = userDb;
+	this.threads = threads;
+    }
+
+    public static Format formatOf(File file) {
+	String name = file.getName().toLowerCase();
+	return (name.endsWith(".jsonl") || name.endsWith(".json")) ? Format.JSONL : Format.CSV;
+    }
+
+    public long getImported() {
+	return imported.get();
+    }
+
+    public long getRejected() {
+	return rejected.get();
+    }
+
+    public boolean importFile(File file, Format format) {
+	File rejectedFile = new File(file.getPath() + REJECTED_SUFFIX);
+	ExecutorService workers = Executors.newFixedThreadPool(threads);
+	// Не больше двух блоков на поток в памяти, чтобы не читать весь файл заранее
+	Semaphore inFlight = new Semaphore(threads * 2);
+	long start = System.nanoTime();
+
+	try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8);
+		PrintWriter rejectedWriter = new PrintWriter(rejectedFile, StandardCharsets.UTF_8.name())) {
+	    rejectedOutput = rejectedWriter;
+	    long lineNumber = 0;
+	    String line;
+	    List<String> chunk = new ArrayList<>(CHUNK_LINES);
+	    long chunkStart = 1;
+	    while ((line = reader.readLine()) != null) {
+		lineNumber++;
+		if (lineNumber == 1 && format == Format.CSV && line.startsWith("login")) {
+		    chunkStart = 2;
+		    continue;
+		}
+		chunk.add(line);
+		if (chunk.size() == CHUNK_LINES) {
+		    submit(workers, inFlight, chunk, chunkStart, format);
+		    chunk = new ArrayList<>(CHUNK_LINES);
+		    chunkStart = lineNumber + 1;
+		}
+	    }
+	    if (!chunk.isEmpty()) {
+		submit(workers, inFlight, chunk, chunkStart, format);
+	    }
+	    workers.shutdown();
+	    workers.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+	} catch (IOException e) {
+	    e.printStackTrace();
+	    return false;
+	} catch (InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	    return false;
+	} finally {
+	    workers.shutdownNow();
+	    rejectedOutput = null;
+	}
+
+	if (rejected.get() == 0) {
+	    rejectedFile.delete();
+	}
+
+	double seconds = (System.nanoTime() - start) / 1e9;
+	System.out.format("Импортировано строк: %d, отклонено: %d за %.1f с (%.0f строк/с)\n", imported.get(),
+		rejected.get(), seconds, (imported.get() + rejected.get()) / Math.max(seconds, 1e-9));
+	if (rejected.get() > 0) {
+	    System.out.format("Отклонённые строки записаны в %s\n", rejectedFile.getPath());
+	}
+	return true;
+    }
+
+    private void submit(ExecutorService workers, Semaphore inFlight, List<String> chunk, long chunkStart,
+	    Format format) throws InterruptedException {
+	inFlight.acquire();
+	workers.execute(() -> {
+	    try {
+		importChunk(chunk, chunkStart, format);
+	    } finally {
+		inFlight.release();
+	    }
+	});
+    }
+
+    private void importChunk(List<String> chunk, long chunkStart, Format format) {
+	// логин -> операции, в порядке строк блока
+	Map<String, Batch> batches = new HashMap<>();
+	for (int i = 0; i < chunk.size(); ++i) {
+	    long lineNumber = chunkStart + i;
+	    String line = chunk.get(i);
+	    if (line.trim().isEmpty())
+		continue;
+
+	    String[] fields;
+	    long amount;
+	    try {
+		fields = (format == Format.JSONL) ? parseJson(line) : parseCsv(line);
+		amount = Money.parse(fields[2]);
+	    } catch (IOException | IllegalArgumentException e) {
+		reject(lineNumber, line, e.getMessage());
+		continue;
+	    }
+	    if (!isValidCategory(fields[1])) {
+		reject(lineNumber, line, "неверная категория");
+		continue;
+	    }
+
+	    Batch batch = batches.computeIfAbsent(fields[0], login -> new Batch());
+	    if (amount >= 0) {
+		batch.posting.incomes.add(userDb.new CashCategory(fields[1], amount));
+	    } else {
+		batch.posting.outcomes.add(userDb.new CashCategory(fields[1], -amount));
+	    }
+	    batch.lineNumbers.add(lineNumber);
+	}
+
+	Map<User, UserDb.Posting> postings = new HashMap<>();
+	List<Batch> posted = new ArrayList<>();
+	long postedLines = 0;
+	for (var entry : batches.entrySet()) {
+	    Batch batch = entry.getValue();
+	    User user = userDb.getUser(entry.getKey());
+	    if (user == null) {
+		rejectBatch(batch, chunk, chunkStart, "пользователь не найден");
+		continue;
+	    }
+	    postings.put(user, batch.posting);
+	    posted.add(batch);
+	    postedLines += batch.lineNumbers.size();
+	}
+	if (!userDb.post(postings)) {
+	    for (var batch : posted) {
+		rejectBatch(batch, chunk, chunkStart, "ошибка записи журнала БД");
+	    }
+	    return;
+	}
+	imported.addAndGet(postedLines);
+    }
+
+    private void rejectBatch(Batch batch, List<String> chunk, long chunkStart, String reason) {
+	for (long lineNumber : batch.lineNumbers) {
+	    reject(lineNumber, chunk.get((int) (lineNumber - chunkStart)), reason);
+	}
+    }
+
+    /*
+     * Категория попадает в строку журнала БД без экранирования, где поля разделены
+     * табуляцией, а записи - переводом строки. Такие символы из JSONL разбили бы
+     * запись, и при восстановлении она была бы отброшена как повреждённая.
+     */
+    private static boolean isValidCategory(String category) {
+	if (category.isEmpty())
+	    return false;
+	for (int i = 0; i < category.length(); ++i) {
+	    char ch = category.charAt(i);
+	    if (ch == '\t' || ch == '\n' || ch == '\r')
+		return false;
+	}
+	return true;
+    }
+
+    /* Поля CSV через запятую; поле в двойных кавычках может содержать запятые ("12,50") */
+    private String[] parseCsv(String line) {
+	List<String> fields = new ArrayList<>(3);
+	StringBuilder field = new StringBuilder();
+	boolean quoted = false;
+	for (int i = 0; i < line.length(); ++i) {
+	    char ch = line.charAt(i);
+	    if (ch == '"') {
+		if (quoted && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+		    field.append('"');
+		    i++;
+		} else {
+		    quoted = !quoted;
+		}
+	    } else if (ch == ',' && !quoted) {
+		fields.add(field.toString().trim());
+		field.setLength(0);
+	    } else {
+		field.append(ch);
+	    }
+	}
+	fields.add(field.toString().trim());
+	if (quoted || fields.size() != 3)
+	    throw new IllegalArgumentException("ожидается логин,категория,сумма");
+	return fields.toArray(new String[3]);
+    }
+
+    private String[] parseJson(String line) throws IOException {
+	String[] fields = new String[3];
+	try (JsonParser parser = jsonFactory.createParser(line)) {
+	    if (parser.nextToken() != JsonToken.START_OBJECT)
+		throw new IllegalArgumentException("ожидается объект JSON");
+	    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+		String fieldName = parser.currentName();
+		parser.nextToken();
+		switch (fieldName) {
+		case "login":
+		    fields[0] = parser.getText();
+		    break;
+		case "category":
+		    fields[1] = parser.getText();
+		    break;
+		case "amount":
+		    fields[2] = parser.getText();
+		    break;
+		default:
+		    parser.skipChildren();
+		}
+	    }
+	} catch (JsonProcessingException e) {
+	    throw new IllegalArgumentException("неверный JSON");
+	}
+	if (fields[0] == null || fields[1] == null || fields[2] == null)
+	    throw new IllegalArgumentException("нет поля login, category или amount");
+	return fields;
+    }
+
+    private void reject(long lineNumber, String line, String reason) {
+	rejected.incrementAndGet();
+	synchronized (this) {
+	    if (rejectedOutput != null)
+		rejectedOutput.format("%d\t%s\t%s\n", lineNumber, reason, line);
+	}
+    }
+}
@@ -1,19 +1,54 @@
 package sf.hrechko.cash;
 
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FilterOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BooleanSupplier;
+import java.util.function.Supplier;
 
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.JsonMappingException;
-import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.StreamWriteFeature;
 
-public class UserDb extends FileDb {
+public class UserDb {
+
+    /* Формат файла БД при сохранении. При загрузке формат определяется по заголовку */
+    public enum Format {
+	JSON, BINARY
+    }
 
     public class CashCategory {
 	private String name;
-	private double value;
+	private volatile long value; // в копейках, см. Money
 	private boolean erasable = true;
 
 	public CashCategory() {
@@ -26,7 +61,7 @@ public class UserDb extends FileDb {
 	    value = 0;
 	}
 
-	public CashCategory(String name, double value) {
+	public CashCategory(String name, long value) {
 	    this.name = name;
 	    this.value = value;
 	}
@@ -35,16 +70,17 @@ public class UserDb extends FileDb {
 	    return name;
 	}
 
-	public double getValue() {
+	public long getValue() {
 	    return value;
 	}
 
-	public void setValue(double val) {
+	public void setValue(long val) {
 	    value = val;
 	}
 
-	public String getJsonStr() {
-	    return String.format("\"%s\": \"%.02f\"", name, value);
+	public void writeJson(JsonGenerator generator) throws IOException {
+	    generator.writeFieldName(name);
+	    generator.writeString(moneyBuffer, 0, Money.format(value, moneyBuffer));
 	}
 
 	public CashCategory setErasable(boolean state) {
@@ -55,32 +91,44 @@ public class UserDb extends FileDb {
 	public boolean isErasable() {
 	    return erasable;
 	}
+
+	@Override
+	public boolean equals(Object obj) {
+	    return (obj instanceof CashCategory) && name.equals(((CashCategory) obj).getName());
+	}
+
+	@Override
+	public int hashCode() {
+	    return name.hashCode();
+	}
     }
 
     public class User {
 	private String login;
 	private String password;
-	private Set<CashCategory> revenue = new HashSet<>(); // доход
-	private Set<CashCategory> spending = new HashSet<>(); // расход
+	private final ReentrantLock lock = new ReentrantLock();
+	// название -> категория, в порядке добавления
+	private Map<String, CashCategory> revenue = new LinkedHashMap<>(); // доход
+	private Map<String, CashCategory> spending = new LinkedHashMap<>(); // расход
+	// Доходы минус расходы. Меняется под блокировкой пользователя, читается без неё
+	private volatile long balance = 0;
+	// LSN последней записи журнала, применённой к пользователю; сохраняется в снимке БД
+	private long lsn = 0;
 
 	private void createDefaultCashCategories() {
-	    revenue.add(new CashCategory("Пополнение").setErasable(false));
-	    revenue.add(new CashCategory("Перевод").setErasable(false));
-	    spending.add(new CashCategory("Снятие").setErasable(false));
-	    spending.add(new CashCategory("Перевод").setErasable(false));
+	    addCategory(new CashCategory("Пополнение").setErasable(false), revenue);
+	    addCategory(new CashCategory("Перевод").setErasable(false), revenue);
+	    addCategory(new CashCategory("Снятие").setErasable(false), spending);
+	    addCategory(new CashCategory("Перевод").setErasable(false), spending);
 	}
 
-	private CashCategory getCategoryFromSet(String name, Set<CashCategory> set) {
-	    CashCategory result = null;
-
-	    for (var element : set) {
-		if (element.getName().equals(name)) {
-		    result = element;
-		    break;
-		}
+	private boolean addCategory(CashCategory cash, Map<String, CashCategory> categories) {
+	    CashCategory foundCategory = categories.putIfAbsent(cash.getName(), cash);
+	    if (foundCategory != null) {
+		var currentValue = foundCategory.getValue() + cash.getValue();
+		foundCategory.setValue(currentValue);
 	    }
-
-	    return result;
+	    return true;
 	}
 
 	public User() {
@@ -111,150 +159,647 @@ public class UserDb extends FileDb {
 	    return login.equals(user.getLogin());
 	}
 
-	public boolean setIncome(CashCategory cash) {
-	    CashCategory foundCategory = getIncomeByName(cash.getName());
-	    if (foundCategory == null)
-		return revenue.add(cash);
-	    else {
-		var currentValue = foundCategory.getValue() + cash.getValue();
-		foundCategory.setValue(currentValue);
+	@Override
+	public boolean equals(Object obj) {
+	    return (obj instanceof User) && equals((User) obj);
+	}
+
+	@Override
+	public int hashCode() {
+	    return login.hashCode();
+	}
+
+	private boolean addIncome(CashCategory cash) {
+	    balance += cash.getValue();
+	    return addCategory(cash, revenue);
+	}
+
+	private boolean addOutcome(CashCategory cash) {
+	    balance -= cash.getValue();
+	    return addCategory(cash, spending);
+	}
+
+	private CashCategory removeIncome(String name) {
+	    CashCategory removed = revenue.remove(name);
+	    if (removed != null)
+		balance -= removed.getValue();
+	    return removed;
+	}
+
+	private CashCategory removeOutcome(String name) {
+	    CashCategory removed = spending.remove(name);
+	    if (removed != null)
+		balance += removed.getValue();
+	    return removed;
+	}
+
+	void copyFrom(User src) {
+	    password = src.password;
+	    for (var rev : src.revenue.values()) {
+		addIncome(new CashCategory(rev.getName(), rev.getValue()));
+	    }
+	    for (var sp : src.spending.values()) {
+		addOutcome(new CashCategory(sp.getName(), sp.getValue()));
 	    }
-	    return true;
 	}
 
-	public boolean deleteIncome(CashCategory cash) {
-	    CashCategory foundCategory = getIncomeByName(cash.getName());
-	    if (foundCategory == null)
+	/*
+	 * Изменения выполняются под блокировкой пользователя и разделяемой блокировкой
+	 * БД, которую контрольная точка берёт монопольно.
+	 */
+	private boolean modify(BooleanSupplier action) {
+	    dbLock.readLock().lock();
+	    lock.lock();
+	    try {
+		return action.getAsBoolean();
+	    } finally {
+		lock.unlock();
+		dbLock.readLock().unlock();
+	    }
+	}
+
+	private <T> T read(Supplier<T> action) {
+	    lock.lock();
+	    try {
+		return action.get();
+	    } finally {
+		lock.unlock();
+	    }
+	}
+
+	/*
+	 * Операция пишется в журнал БД и в Ledger с одной отметкой времени. Если запись
+	 * в журнал не удалась, операция не применяется.
+	 */
+	private boolean post(UserJournal.Operation op, Ledger.Kind kind, CashCategory cash) {
+	    long time = ledgerTime();
+	    long entryLsn = journal(op, login, cash.getName(), Money.toString(cash.getValue()), time);
+	    if (entryLsn < 0)
+		return false;
+	    applied(entryLsn);
+	    record(new Ledger.Entry(time, login, kind, cash.getName(), cash.getValue()));
+	    return (kind == Ledger.Kind.INCOME) ? addIncome(cash) : addOutcome(cash);
+	}
+
+	/* Удаление категории записывается в Ledger как отмена её суммы */
+	private boolean delete(UserJournal.Operation op, Ledger.Kind kind, CashCategory foundCategory) {
+	    long time = ledgerTime();
+	    long entryLsn = journal(op, login, foundCategory.getName(), Money.toString(foundCategory.getValue()), time);
+	    if (entryLsn < 0)
 		return false;
-	    return revenue.remove(foundCategory);
+	    applied(entryLsn);
+	    record(new Ledger.Entry(time, login, kind, foundCategory.getName(), -foundCategory.getValue()));
+	    return ((kind == Ledger.Kind.INCOME) ? removeIncome(foundCategory.getName())
+		    : removeOutcome(foundCategory.getName())) != null;
+	}
+
+	public boolean setIncome(CashCategory cash) {
+	    FlightEvents.Operation event = new FlightEvents.Operation();
+	    event.begin();
+	    boolean done = modify(() -> post(UserJournal.Operation.INCOME, Ledger.Kind.INCOME, cash));
+	    event.end("income", login, cash.getName(), cash.getValue(), null, done);
+	    return done;
+	}
+
+	/* Пополнение баланса; в метрику попадают только зачисленные суммы */
+	public boolean refill(CashCategory cash) {
+	    FlightEvents.Operation event = new FlightEvents.Operation();
+	    event.begin();
+	    long start = System.nanoTime();
+	    boolean done = modify(() -> {
+		if (cash.getValue() <= 0)
+		    return false;
+		return post(UserJournal.Operation.INCOME, Ledger.Kind.INCOME, cash);
+	    });
+	    if (done)
+		metrics.record(Metrics.REFILL, start);
+	    event.end(Metrics.REFILL, login, cash.getName(), cash.getValue(), null, done);
+	    return done;
+	}
+
+	public boolean deleteIncome(CashCategory cash) {
+	    FlightEvents.Operation event = new FlightEvents.Operation();
+	    event.begin();
+	    boolean done = modify(() -> {
+		CashCategory foundCategory = getIncomeByName(cash.getName());
+		if (foundCategory == null)
+		    return false;
+		return delete(UserJournal.Operation.DELETE_INCOME, Ledger.Kind.INCOME, foundCategory);
+	    });
+	    event.end("deleteIncome", login, cash.getName(), cash.getValue(), null, done);
+	    return done;
 	}
 
 	public boolean setOutcome(CashCategory cash) {
-	    CashCategory foundCategory = getOutcomeByName(cash.getName());
-	    if (foundCategory == null)
-		return spending.add(cash);
-	    else {
-		var currentValue = foundCategory.getValue() + cash.getValue();
-		foundCategory.setValue(currentValue);
-	    }
-	    return true;
+	    FlightEvents.Operation event = new FlightEvents.Operation();
+	    event.begin();
+	    boolean done = modify(() -> post(UserJournal.Operation.OUTCOME, Ledger.Kind.OUTCOME, cash));
+	    event.end("outcome", login, cash.getName(), cash.getValue(), null, done);
+	    return done;
+	}
+
+	/* Списание с проверкой баланса одной операцией */
+	public boolean withdraw(CashCategory cash) {
+	    FlightEvents.Operation event = new FlightEvents.Operation();
+	    event.begin();
+	    long start = System.nanoTime();
+	    boolean done = modify(() -> {
+		if (cash.getValue() <= 0 || getBalance() < cash.getValue())
+		    return false;
+		return post(UserJournal.Operation.OUTCOME, Ledger.Kind.OUTCOME, cash);
+	    });
+	    if (done)
+		metrics.record(Metrics.WITHDRAW, start);
+	    else
+		metrics.increment(Metrics.WITHDRAW_REJECTED);
+	    event.end(Metrics.WITHDRAW, login, cash.getName(), cash.getValue(), null, done);
+	    return done;
 	}
 
 	public boolean deleteOutcome(CashCategory cash) {
-	    CashCategory foundCategory = getOutcomeByName(cash.getName());
-	    if (foundCategory == null)
-		return false;
-	    return spending.remove(foundCategory);
+	    FlightEvents.Operation event = new FlightEvents.Operation();
+	    event.begin();
+	    boolean done = modify(() -> {
+		CashCategory foundCategory = getOutcomeByName(cash.getName());
+		if (foundCategory == null)
+		    return false;
+		return delete(UserJournal.Operation.DELETE_OUTCOME, Ledger.Kind.OUTCOME, foundCategory);
+	    });
+	    event.end("deleteOutcome", login, cash.getName(), cash.getValue(), null, done);
+	    return done;
 	}
 
 	public CashCategory getIncomeByName(String name) {
-	    return getCategoryFromSet(name, revenue);
+	    return read(() -> revenue.get(name));
 	}
 
 	public CashCategory getOutcomeByName(String name) {
-	    return getCategoryFromSet(name, spending);
+	    return read(() -> spending.get(name));
 	}
 
 	public String[] getIncomeNames() {
-	    String[] result = new String[revenue.size()];
-	    int count = 0;
-
-	    for (var rev : revenue) {
-		result[count++] = rev.getName();
-	    }
-	    return result;
+	    return read(() -> revenue.keySet().toArray(new String[revenue.size()]));
 	}
 
 	public String[] getOutcomeNames() {
-	    String[] result = new String[spending.size()];
-	    int count = 0;
-
-	    for (var sp : spending) {
-		result[count++] = sp.getName();
-	    }
-	    return result;
+	    return read(() -> spending.keySet().toArray(new String[spending.size()]));
 	}
 
-	public double getBalance() {
-	    double balance = 0.;
+	public Collection<CashCategory> getIncomes() {
+	    return read(() -> new ArrayList<>(revenue.values()));
+	}
 
-	    for (var rev : revenue) {
-		balance += rev.value;
-	    }
+	public Collection<CashCategory> getOutcomes() {
+	    return read(() -> new ArrayList<>(spending.values()));
+	}
 
-	    for (var sp : spending) {
-		balance -= sp.value;
-	    }
+	public long getBalance() {
 	    return balance;
 	}
 
-	public String getJsonStr() {
-	    String outStr = String.format("\"%s\" : {\"password\":\"%s\",\"revenue\":{", login, password);
-	    int count = 0;
-	    for (var rev : revenue) {
-		outStr += String.format("%s", rev.getJsonStr());
-		if (++count < revenue.size())
-		    outStr += ",";
+	/* Сверяет баланс с суммами категорий и при расхождении пересчитывает его */
+	boolean checkBalance() {
+	    return read(() -> {
+		long actual = 0;
+
+		for (var rev : revenue.values()) {
+		    actual += rev.value;
+		}
+
+		for (var sp : spending.values()) {
+		    actual -= sp.value;
+		}
+
+		if (actual == balance)
+		    return true;
+		System.out.format("Баланс пользователя %s не совпадает с категориями, пересчитан\n", login);
+		balance = actual;
+		return false;
+	    });
+	}
+
+	private void applied(long entryLsn) {
+	    lsn = Math.max(lsn, entryLsn);
+	}
+
+	/* Копия для сохранения в фоне; вызывается под монопольной блокировкой БД */
+	User copyForSnapshot() {
+	    User copy = new User(login, "");
+	    copy.copyFrom(this);
+	    copy.lsn = lsn;
+	    return copy;
+	}
+
+	/* Запись журнала уже учтена в снимке, из которого загружен пользователь */
+	private boolean isApplied(long entryLsn) {
+	    return entryLsn != 0 && entryLsn <= lsn;
+	}
+
+	public void writeJson(JsonGenerator generator) throws IOException {
+	    generator.writeStartObject();
+	    generator.writeStringField("password", password);
+	    generator.writeNumberField("lsn", lsn);
+	    generator.writeObjectFieldStart("revenue");
+	    for (var rev : revenue.values()) {
+		rev.writeJson(generator);
 	    }
-	    outStr += "},\"spending\":{";
-	    count = 0;
-	    for (var sp : spending) {
-		outStr += String.format("%s", sp.getJsonStr());
-		if (++count < spending.size())
-		    outStr += ",";
+	    generator.writeEndObject();
+	    generator.writeObjectFieldStart("spending");
+	    for (var sp : spending.values()) {
+		sp.writeJson(generator);
 	    }
-	    outStr += "}}";
-	    return outStr;
+	    generator.writeEndObject();
+	    generator.writeEndObject();
 	}
 
     }
 
-    private JsonNode rootNode = null;
-    private Set<User> userList = new HashSet<>();
+    private final String JOURNAL_SUFFIX = ".journal";
+    private final String LEDGER_SUFFIX = ".ledger";
+    private final String TRANSFER_CATEGORY = "Перевод";
+    private final JsonFactory jsonFactory = JsonFactory.builder().disable(StreamWriteFeature.AUTO_CLOSE_TARGET)
+	    .build();
+    private final byte[] BINARY_MAGIC = { 'C', 'A', 'S', 'H' };
+    // 1 - суммы в double, 2 - суммы в копейках (long), 3 - с LSN пользователя
+    protected final int BINARY_VERSION = 3;
+    private final char[] moneyBuffer = new char[Money.MAX_LENGTH];
+    protected Map<String, User> users = new ConcurrentHashMap<>(); // логин -> пользователь
+    protected FileDb db;
+    private Format format = Format.JSON;
+    private UserJournal journal = null;
+    protected long snapshotLsn = 0; // наибольший LSN, покрытый загруженным снимком
+    private int commitBatch = UserJournal.DEFAULT_MAX_BATCH;
+    private long commitWaitMicros = 0;
+    private Ledger ledger = null;
+    private Set<Long> replayLedgerTimes = null; // отметки Ledger, записанные до сбоя; только при init()
+    private long replayLedgerFrom = Long.MAX_VALUE; // с этой отметки Ledger уже прочитан
+    /* Изменения берут блокировку на чтение, сохранение всей БД - на запись */
+    private final ReentrantReadWriteLock dbLock = new ReentrantReadWriteLock();
+    /* Контрольные точки: полное сохранение БД с очисткой журнала */
+    private ScheduledExecutorService checkpointer = null;
+    private int checkpointMutations = 0;
+    private AtomicInteger mutations = new AtomicInteger();
+    private AtomicBoolean checkpointRequested = new AtomicBoolean();
+    /* Сохранение снимков в фоне */
+    private final Object saveLock = new Object();
+    private ExecutorService saver = null;
+    private CompletableFuture<Boolean> pendingSave = null; // запрошено, но ещё не начато
+    private CompletableFuture<Boolean> lastSave = CompletableFuture.completedFuture(true);
+    protected Set<String> changedUsers = ConcurrentHashMap.newKeySet(); // изменённые после последнего снимка
+    private final Metrics metrics = new Metrics();
+
+    /* Копия данных БД на момент контрольной точки */
+    protected class Snapshot {
+	protected List<User> users = new ArrayList<>();
+	protected long lsn; // последний LSN, покрытый снимком
+	protected long bytes = 0; // записано при сохранении снимка
+    }
+
+    /* Считает байты, фактически переданные в файл БД */
+    static class CountingOutputStream extends FilterOutputStream {
+	private long count = 0;
+
+	CountingOutputStream(OutputStream output) {
+	    super(output);
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+	    out.write(b);
+	    ++count;
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+	    out.write(b, off, len);
+	    count += len;
+	}
+
+	long getCount() {
+	    return count;
+	}
+    }
 
     public UserDb(String filePath) {
-	super(filePath);
+	this(new FileDb(filePath));
+    }
+
+    public UserDb(FileDb db) {
+	this.db = db;
+	// Все метрики создаются сразу, чтобы MBean показывал их до первой операции
+	for (String name : new String[] { Metrics.LOAD, Metrics.SAVE, Metrics.LOGIN, Metrics.REFILL, Metrics.WITHDRAW,
+		Metrics.TRANSFER }) {
+	    metrics.histogram(name);
+	}
+	for (String name : new String[] { Metrics.SAVE_FAILED, Metrics.LOGIN_REJECTED, Metrics.WITHDRAW_REJECTED,
+		Metrics.TRANSFER_REJECTED }) {
+	    metrics.counter(name);
+	}
+	metrics.gauge("users", () -> getLogins().size());
+	metrics.gauge("dbFileBytes", () -> db.getFile().length());
+	metrics.gauge("unsavedMutations", () -> mutations.get());
+	metrics.gauge("journalCommits", () -> getCommitStats().getCommits());
+    }
+
+    public void setFormat(Format format) {
+	this.format = format;
+    }
+
+    public Format getFormat() {
+	return format;
+    }
+
+    /* Групповая фиксация журнала, см. UserJournal; задаётся до init() */
+    public void setGroupCommit(int maxBatch, long maxWaitMicros) {
+	commitBatch = maxBatch;
+	commitWaitMicros = maxWaitMicros;
+    }
+
+    public Metrics getMetrics() {
+	return metrics;
+    }
+
+    public UserJournal.CommitStats getCommitStats() {
+	UserJournal userJournal = journal;
+	return (userJournal != null) ? userJournal.getCommitStats() : new UserJournal.CommitStats();
     }
 
     public boolean init() {
-	if (!load()) {
-	    if (!file.exists())
-		try {
-		    file.createNewFile();
-		    setStr("{}");
-		    if (!save())
-			return false;
-		} catch (IOException e) {
-		    e.printStackTrace();
-		    return false;
-		}
+	FlightEvents.Load loadEvent = new FlightEvents.Load();
+	loadEvent.begin();
+	long start = System.nanoTime();
+	if (!loadUsers())
+	    return false;
+	metrics.record(Metrics.LOAD, start);
+	loadEvent.end();
+	if (loadEvent.shouldCommit()) {
+	    loadEvent.path = db.getFile().getPath();
+	    loadEvent.users = getLogins().size();
+	    loadEvent.bytes = db.getFile().length();
+	    loadEvent.commit();
+	}
+
+	Ledger userLedger = new Ledger(getLedgerDir());
+	if (!userLedger.open()) {
+	    System.out.format("Ошибка открытия журнала операций %s!\n", getLedgerDir().getName());
+	    return false;
 	}
+	ledger = userLedger;
 
-	return loadJson();
+	// Изменения, не попавшие в файл БД до завершения прошлой сессии
+	File file = db.getFile();
+	UserJournal userJournal = new UserJournal(file.getPath() + JOURNAL_SUFFIX);
+	userJournal.setGroupCommit(commitBatch, commitWaitMicros);
+	userJournal.setLastLsn(snapshotLsn);
+	boolean replayed = userJournal.replay(this::replayJournal);
+	replayLedgerTimes = null;
+	replayLedgerFrom = Long.MAX_VALUE;
+	if (!replayed || !userJournal.open()) {
+	    System.out.format("Ошибка открытия журнала БД %s!\n", file.getName());
+	    return false;
+	}
+	journal = userJournal;
+
+	for (var user : users.values()) {
+	    user.checkBalance();
+	}
+	return true;
+    }
+
+    public void startCheckpoints(long periodSec, int maxMutations) {
+	checkpointMutations = maxMutations;
+	checkpointer = Executors.newSingleThreadScheduledExecutor(task -> {
+	    Thread thread = new Thread(task, "UserDb checkpoint");
+	    thread.setDaemon(true);
+	    return thread;
+	});
+	checkpointer.scheduleWithFixedDelay(this::checkpointIfChanged, periodSec, periodSec, TimeUnit.SECONDS);
+    }
+
+    /*
+     * Контрольная точка в фоне. Под монопольной блокировкой БД журнал переключается
+     * на новый сегмент и снимаются копии пользователей (заново копируются только
+     * изменённые). Запись снимка идёт в отдельном потоке, пока изменения продолжаются
+     * в новом сегменте журнала. Запросы, пришедшие до начала записи, объединяются с
+     * ней; future завершается, когда снимок записан и старые сегменты удалены.
+     */
+    public CompletableFuture<Boolean> saveAsync() {
+	synchronized (saveLock) {
+	    if (pendingSave != null)
+		return pendingSave;
+
+	    if (saver == null) {
+		saver = Executors.newSingleThreadExecutor(task -> {
+		    Thread thread = new Thread(task, "UserDb save");
+		    thread.setDaemon(true);
+		    return thread;
+		});
+	    }
+	    pendingSave = new CompletableFuture<>();
+	    lastSave = pendingSave;
+	    saver.execute(this::save);
+	    return pendingSave;
+	}
+    }
+
+    public boolean checkpoint() {
+	return saveAsync().join();
+    }
+
+    private void save() {
+	CompletableFuture<Boolean> future;
+	synchronized (saveLock) {
+	    future = pendingSave;
+	    pendingSave = null;
+	}
+	boolean saved = false;
+	try {
+	    saved = writeSnapshot();
+	} finally {
+	    future.complete(saved);
+	}
+    }
+
+    private boolean writeSnapshot() {
+	Snapshot snapshot;
+	long segment;
+	int savedMutations;
+	dbLock.writeLock().lock();
+	try {
+	    checkpointRequested.set(false);
+	    // Снимок покрывает все сегменты журнала до нового
+	    segment = (journal != null) ? journal.roll() : 0;
+	    if (segment < 0)
+		return false;
+	    snapshot = takeSnapshot();
+	    savedMutations = mutations.getAndSet(0);
+	} finally {
+	    dbLock.writeLock().unlock();
+	}
+
+	// Операции из удаляемых сегментов должны остаться в Ledger
+	FlightEvents.Save saveEvent = new FlightEvents.Save();
+	saveEvent.begin();
+	long start = System.nanoTime();
+	boolean saved = saveUsers(snapshot);
+	metrics.record(Metrics.SAVE, start);
+	saveEvent.end();
+	if (saveEvent.shouldCommit()) {
+	    saveEvent.path = db.getFile().getPath();
+	    saveEvent.users = snapshot.users.size();
+	    saveEvent.bytes = snapshot.bytes;
+	    saveEvent.lsn = snapshot.lsn;
+	    saveEvent.saved = saved;
+	    saveEvent.commit();
+	}
+	if (!saved || (ledger != null && !ledger.checkpoint())) {
+	    metrics.increment(Metrics.SAVE_FAILED);
+	    mutations.addAndGet(savedMutations);
+	    return false;
+	}
+	return journal == null || journal.compact(segment);
+    }
+
+    private void checkpointIfChanged() {
+	if (mutations.get() > 0) {
+	    saveAsync();
+	}
     }
 
     public void close() {
-	String outData = "{";
-	int userNumber = userList.size();
-	int count = 0;
-
-	for (var user : userList) {
-	    outData += user.getJsonStr();
-	    if (++count < userNumber) {
-		outData += ",";
+	if (checkpointer != null) {
+	    checkpointer.shutdown();
+	    try {
+		checkpointer.awaitTermination(1, TimeUnit.MINUTES);
+	    } catch (InterruptedException e) {
+		Thread.currentThread().interrupt();
 	    }
+	    checkpointer = null;
+	}
+
+	// Дожидается последнего сохранения; если после него изменений не было, новое не нужно
+	CompletableFuture<Boolean> last;
+	synchronized (saveLock) {
+	    last = (mutations.get() > 0) ? null : lastSave;
+	}
+	(last != null ? last : saveAsync()).join();
+	synchronized (saveLock) {
+	    if (saver != null) {
+		saver.shutdown();
+		saver = null;
+	    }
+	}
+
+	if (journal != null) {
+	    journal.close();
+	    journal = null;
+	}
+	if (ledger != null) {
+	    ledger.close();
+	    ledger = null;
 	}
-	outData += "}";
-	setStr(outData);
-	save();
     }
 
-    public boolean isUserPresent(String user) {
-	for (var usr : userList) {
-	    if (usr.getLogin().equals(user))
-		return true;
+    protected File getLedgerDir() {
+	return new File(db.getFile().getPath() + LEDGER_SUFFIX);
+    }
+
+    /* Суммы операций пользователя по категориям за дни с from по to включительно */
+    public Rollups.Report getReport(User user, LocalDate from, LocalDate to) {
+	return (ledger != null) ? ledger.report(user.getLogin(), from, to) : new Rollups.Report();
+    }
+
+    /* Операции пользователя за период [from, to) по времени */
+    public List<Ledger.Entry> getHistory(User user, Instant from, Instant to) {
+	List<Ledger.Entry> entries = new ArrayList<>();
+	if (ledger == null)
+	    return entries;
+
+	ledger.scan(Ledger.toMicros(from), Ledger.toMicros(to), entry -> {
+	    if (user.equals(entry.getLogin()))
+		entries.add(entry);
+	});
+	entries.sort((first, second) -> Long.compare(first.getTime(), second.getTime()));
+	return entries;
+    }
+
+    protected boolean loadUsers() {
+	if (!db.getFile().exists() && !db.save(output -> saveDb(output, users.values())))
+	    return false;
+	return db.load(this::loadDb);
+    }
+
+    protected boolean saveUsers() {
+	dbLock.writeLock().lock();
+	Snapshot snapshot;
+	try {
+	    snapshot = takeSnapshot();
+	} finally {
+	    dbLock.writeLock().unlock();
 	}
-	return false;
+	return saveUsers(snapshot);
+    }
+
+    /* Вызывается под монопольной блокировкой БД */
+    protected Snapshot takeSnapshot() {
+	Snapshot snapshot = new Snapshot();
+	snapshot.lsn = getLastLsn();
+	// Копируются только изменённые пользователи, их данные меняются чаще всего.
+	// Остальные пишутся как есть под блокировкой пользователя: если он изменится
+	// до записи, в снимок попадёт его LSN и запись журнала не применится дважды
+	for (var user : users.values()) {
+	    snapshot.users.add(changedUsers.contains(user.getLogin()) ? user.copyForSnapshot() : user);
+	}
+	changedUsers.clear();
+	return snapshot;
+    }
+
+    /* Вызывается без блокировки БД, только из потока сохранения */
+    protected boolean saveUsers(Snapshot snapshot) {
+	return db.save(output -> {
+	    CountingOutputStream counted = new CountingOutputStream(output);
+	    try {
+		return saveDb(counted, snapshot.users);
+	    } finally {
+		snapshot.bytes += counted.getCount();
+	    }
+	});
+    }
+
+    /* Вызывается при каждом изменении данных пользователя */
+    protected void userChanged(String login) {
+	changedUsers.add(login);
+    }
+
+    /* Вызывается под блокировкой нового пользователя до записи в журнал */
+    protected void userAdded(User user) {
+    }
+
+    /* Отмена userAdded(), если добавление не записано в журнал */
+    protected void userRemoved(User user) {
+    }
+
+    Collection<User> getUsers() {
+	return users.values();
+    }
+
+    /* Логины всех пользователей, в том числе ещё не загруженных */
+    Collection<String> getLogins() {
+	return users.keySet();
+    }
+
+    public boolean export(FileDb target, Format targetFormat) {
+	dbLock.writeLock().lock();
+	try {
+	    return target.save(output -> (targetFormat == Format.BINARY) ? saveBinary(output, users.values())
+		    : saveJson(output, users.values()));
+	} finally {
+	    dbLock.writeLock().unlock();
+	}
+    }
+
+    public boolean isUserPresent(String user) {
+	return users.containsKey(user);
     }
 
     public boolean isUserPresent(User user) {
@@ -262,59 +807,507 @@ public class UserDb extends FileDb {
     }
 
     public User getUser(String name) {
-	for (var user : userList) {
-	    if (user.getLogin().equals(name))
-		return user;
+	return users.get(name);
+    }
+
+    /* Пользователь с этим логином и паролем или null */
+    public User login(String name, String pswd) {
+	long start = System.nanoTime();
+	User user = getUser(name);
+	boolean found = user != null && user.checkPassword(pswd);
+	metrics.record(Metrics.LOGIN, start);
+	if (!found) {
+	    metrics.increment(Metrics.LOGIN_REJECTED);
+	    return null;
 	}
-	return null;
+	return user;
     }
 
     public boolean addUser(User newUser) {
 	if (isUserPresent(newUser))
 	    return false;
 
-	return userList.add(newUser);
+	// Пока запись о пользователе не в журнале, его нельзя изменять
+	return newUser.modify(() -> {
+	    if (users.putIfAbsent(newUser.getLogin(), newUser) != null)
+		return false;
+	    userAdded(newUser);
+	    long entryLsn = journal(UserJournal.Operation.ADD_USER, newUser.login, newUser.password);
+	    if (entryLsn < 0) {
+		users.remove(newUser.getLogin(), newUser);
+		userRemoved(newUser);
+		return false;
+	    }
+	    newUser.applied(entryLsn);
+	    return true;
+	});
+    }
+
+    public boolean transfer(User from, User to, long value) {
+	FlightEvents.Operation event = new FlightEvents.Operation();
+	event.begin();
+	long start = System.nanoTime();
+	boolean done = move(from, to, value);
+	if (done)
+	    metrics.record(Metrics.TRANSFER, start);
+	else
+	    metrics.increment(Metrics.TRANSFER_REJECTED);
+	event.end(Metrics.TRANSFER, from.getLogin(), "Перевод", value, to.getLogin(), done);
+	return done;
     }
 
-    private boolean loadJson() {
+    /*
+     * Перевод выполняется под блокировками обоих пользователей. Блокировки берутся в
+     * порядке логинов, поэтому встречные переводы не приводят к взаимной блокировке.
+     */
+    private boolean move(User from, User to, long value) {
+	// Отрицательная сумма перевела бы деньги от получателя к отправителю
+	if (value <= 0)
+	    return false;
+	User first = (from.getLogin().compareTo(to.getLogin()) <= 0) ? from : to;
+	User second = (first == from) ? to : from;
+
+	dbLock.readLock().lock();
+	first.lock.lock();
+	second.lock.lock();
 	try {
-	    rootNode = new ObjectMapper().readTree(getStr());
-	    var keys = rootNode.fieldNames();
-	    while (keys.hasNext()) {
-		String userName = keys.next();
-		var userData = rootNode.get(userName);
-		String userPswd = userData.get("password").asText();
-		User user = new User(userName, userPswd);
-		// Todo refactor
-		var revenue = userData.get("revenue");
-		var revCategories = revenue.fieldNames();
-		while (revCategories.hasNext()) {
-		    String revName = revCategories.next();
-		    var revValue = revenue.get(revName).asText();
-		    if (revValue.contains(",")) {
-			revValue = revValue.replaceAll(",", ".");
-		    }
-		    user.setIncome(new CashCategory(revName, Double.valueOf(revValue)));
+	    if (from.getBalance() < value)
+		return false;
+	    long time = ledgerTime();
+	    long lsn = journal(UserJournal.Operation.TRANSFER, from.getLogin(), to.getLogin(), Money.toString(value),
+		    time);
+	    if (lsn < 0)
+		return false;
+	    from.applied(lsn);
+	    to.applied(lsn);
+	    record(transferEntries(time, from.getLogin(), to.getLogin(), value));
+	    applyTransfer(from, to, value);
+	    return true;
+	} finally {
+	    second.lock.unlock();
+	    first.lock.unlock();
+	    dbLock.readLock().unlock();
+	}
+    }
+
+    /* Зачисления и списания одного пользователя для post() */
+    static class Posting {
+	final List<CashCategory> incomes = new ArrayList<>();
+	final List<CashCategory> outcomes = new ArrayList<>();
+    }
+
+    /*
+     * Пакетное зачисление и списание без проверки баланса (импорт выписок). Все
+     * операции пакета пишутся в журнал одной записью; пользователи пакета
+     * блокируются в порядке логинов, как при переводе. Если запись в журнал не
+     * удалась, пакет не применяется и возвращается false.
+     */
+    boolean post(Map<User, Posting> postings) {
+	List<User> lockOrder = new ArrayList<>(postings.keySet());
+	lockOrder.sort((first, second) -> first.getLogin().compareTo(second.getLogin()));
+
+	dbLock.readLock().lock();
+	for (var user : lockOrder) {
+	    user.lock.lock();
+	}
+	try {
+	    List<UserJournal.Entry> entries = new ArrayList<>();
+	    List<Ledger.Entry> ledgerEntries = new ArrayList<>();
+	    for (var posting : postings.entrySet()) {
+		String login = posting.getKey().getLogin();
+		for (var cash : posting.getValue().incomes) {
+		    long time = ledgerTime();
+		    entries.add(new UserJournal.Entry(UserJournal.Operation.INCOME, login, cash.getName(),
+			    Money.toString(cash.getValue()), time));
+		    ledgerEntries.add(new Ledger.Entry(time, login, Ledger.Kind.INCOME, cash.getName(),
+			    cash.getValue()));
 		}
-		var spending = userData.get("spending");
-		var spCategories = spending.fieldNames();
-		while (spCategories.hasNext()) {
-		    String spName = spCategories.next();
-		    var spValue = spending.get(spName).asText();
-		    if (spValue.contains(",")) {
-			spValue = spValue.replaceAll(",", ".");
-		    }
-		    user.setOutcome(new CashCategory(spName, Double.valueOf(spValue)));
+		for (var cash : posting.getValue().outcomes) {
+		    long time = ledgerTime();
+		    entries.add(new UserJournal.Entry(UserJournal.Operation.OUTCOME, login, cash.getName(),
+			    Money.toString(cash.getValue()), time));
+		    ledgerEntries.add(new Ledger.Entry(time, login, Ledger.Kind.OUTCOME, cash.getName(),
+			    cash.getValue()));
+		}
+	    }
+	    // Без журнала операции, как и одиночные, всё равно попадают в Ledger
+	    if (journal != null) {
+		long lsn = journal.append(entries);
+		if (lsn < 0)
+		    return false;
+		for (var user : lockOrder) {
+		    userChanged(user.getLogin());
+		    user.applied(lsn);
+		}
+		countMutations(entries.size());
+	    }
+	    record(ledgerEntries);
+
+	    for (var posting : postings.entrySet()) {
+		User user = posting.getKey();
+		for (var cash : posting.getValue().incomes) {
+		    user.addIncome(cash);
+		}
+		for (var cash : posting.getValue().outcomes) {
+		    user.addOutcome(cash);
 		}
-		userList.add(user);
 	    }
 	    return true;
-	} catch (JsonMappingException e) {
-	    e.printStackTrace();
+	} finally {
+	    for (var user : lockOrder) {
+		user.lock.unlock();
+	    }
+	    dbLock.readLock().unlock();
+	}
+    }
+
+    private Ledger.Entry[] transferEntries(long time, String from, String to, long value) {
+	return new Ledger.Entry[] { new Ledger.Entry(time, from, Ledger.Kind.OUTCOME, TRANSFER_CATEGORY, value),
+		new Ledger.Entry(time, to, Ledger.Kind.INCOME, TRANSFER_CATEGORY, value) };
+    }
+
+    private void applyTransfer(User from, User to, long value) {
+	from.addOutcome(new CashCategory(TRANSFER_CATEGORY, value));
+	to.addIncome(new CashCategory(TRANSFER_CATEGORY, value));
+    }
+
+    /* Возвращает LSN записи, 0, если журнала нет, или -1, если запись не удалась */
+    private long journal(UserJournal.Operation op, Object... args) {
+	if (journal == null)
+	    return 0;
+
+	long lsn = journal.append(op, args);
+	if (lsn < 0)
+	    return -1;
+	userChanged((String) args[0]);
+	if (op == UserJournal.Operation.TRANSFER) {
+	    userChanged((String) args[1]);
+	}
+	countMutations(1);
+	return lsn;
+    }
+
+    /* Последний LSN, который покроет сохраняемый снимок */
+    protected long getLastLsn() {
+	return (journal != null) ? journal.getLastLsn() : snapshotLsn;
+    }
+
+    private long ledgerTime() {
+	return (ledger != null) ? ledger.nextTime() : 0;
+    }
+
+    private void record(Ledger.Entry... entries) {
+	if (ledger != null)
+	    ledger.append(entries);
+    }
+
+    private void record(List<Ledger.Entry> entries) {
+	if (ledger != null)
+	    ledger.append(entries);
+    }
+
+    private void countMutations(int count) {
+	if (mutations.addAndGet(count) >= checkpointMutations && checkpointer != null
+		&& checkpointRequested.compareAndSet(false, true)) {
+	    checkpointer.execute(this::checkpointIfChanged);
+	}
+    }
+
+    /* Записи, уже учтённые в снимке пользователя, пропускаются */
+    private void replayJournal(long lsn, UserJournal.Operation op, String[] args) {
+	if (op == UserJournal.Operation.ADD_USER) {
+	    User user = new User(args[0], args[1]);
+	    if (addUser(user)) {
+		user.applied(lsn);
+		mutations.incrementAndGet();
+		userChanged(args[0]);
+	    }
+	    return;
+	}
+
+	User user = getUser(args[0]);
+	if (user == null) {
+	    System.out.format("Пользователь %s из журнала БД не найден!\n", args[0]);
+	    return;
+	}
+	User toUser = null;
+	if (op == UserJournal.Operation.TRANSFER) {
+	    toUser = getUser(args[1]);
+	    if (toUser == null) {
+		System.out.format("Пользователь %s из журнала БД не найден!\n", args[1]);
+		return;
+	    }
+	}
+
+	// Отметка времени есть только в записях, сделанных вместе с записью в Ledger
+	long time = (args.length > op.getMinArgsNumber()) ? Long.parseLong(args[args.length - 1]) : 0;
+	boolean userApplied = user.isApplied(lsn);
+	CashCategory removed;
+	switch (op) {
+	case INCOME:
+	    long income = Money.parse(args[2]);
+	    if (!userApplied)
+		user.addIncome(new CashCategory(args[1], income));
+	    replayLedger(time, new Ledger.Entry(time, user.getLogin(), Ledger.Kind.INCOME, args[1], income));
+	    break;
+	case OUTCOME:
+	    long outcome = Money.parse(args[2]);
+	    if (!userApplied)
+		user.addOutcome(new CashCategory(args[1], outcome));
+	    replayLedger(time, new Ledger.Entry(time, user.getLogin(), Ledger.Kind.OUTCOME, args[1], outcome));
+	    break;
+	case DELETE_INCOME:
+	    removed = userApplied ? null : user.removeIncome(args[1]);
+	    replayDelete(time, user, Ledger.Kind.INCOME, op, args, removed);
+	    break;
+	case DELETE_OUTCOME:
+	    removed = userApplied ? null : user.removeOutcome(args[1]);
+	    replayDelete(time, user, Ledger.Kind.OUTCOME, op, args, removed);
+	    break;
+	case TRANSFER:
+	    // Снимки участников перевода могли быть сохранены в разное время (ShardedUserDb)
+	    long value = Money.parse(args[2]);
+	    boolean toApplied = toUser.isApplied(lsn);
+	    if (!userApplied)
+		user.addOutcome(new CashCategory(TRANSFER_CATEGORY, value));
+	    if (!toApplied)
+		toUser.addIncome(new CashCategory(TRANSFER_CATEGORY, value));
+	    if (!toApplied) {
+		toUser.applied(lsn);
+		userChanged(args[1]);
+	    }
+	    replayLedger(time, transferEntries(time, user.getLogin(), toUser.getLogin(), value));
+	    break;
+	default:
+	    ;
+	}
+	if (!userApplied) {
+	    user.applied(lsn);
+	    mutations.incrementAndGet();
+	    userChanged(args[0]);
+	}
+    }
+
+    /*
+     * Отмена суммы удалённой категории восстанавливается, даже если снимок пользователя
+     * уже учитывает удаление. В записях старых версий суммы нет, тогда она берётся из
+     * удалённой при восстановлении категории.
+     */
+    private void replayDelete(long time, User user, Ledger.Kind kind, UserJournal.Operation op, String[] args,
+	    CashCategory removed) {
+	long value;
+	if (args.length == op.getArgsNumber()) {
+	    value = Money.parse(args[2]);
+	} else if (removed != null) {
+	    value = removed.getValue();
+	} else {
+	    return;
+	}
+	replayLedger(time, new Ledger.Entry(time, user.getLogin(), kind, args[1], -value));
+    }
+
+    /*
+     * Дописывает в Ledger операцию из журнала БД, если до сбоя она туда не попала.
+     * Журнал содержит только операции после последней контрольной точки, поэтому
+     * отметки Ledger читаются начиная с самой ранней из них. Отметка берётся до
+     * записи в журнал, и при групповой фиксации записи идут не по времени: если
+     * встретилась более ранняя отметка, дочитывается недостающий период.
+     */
+    private void replayLedger(long time, Ledger.Entry... entries) {
+	if (time == 0 || ledger == null)
+	    return;
+	if (replayLedgerTimes == null) {
+	    replayLedgerTimes = new HashSet<>();
+	}
+	if (time < replayLedgerFrom) {
+	    Set<Long> times = replayLedgerTimes;
+	    ledger.scan(time, replayLedgerFrom, entry -> times.add(entry.getTime()));
+	    replayLedgerFrom = time;
+	}
+	if (replayLedgerTimes.add(time)) {
+	    ledger.append(entries);
+	}
+    }
+
+    private boolean loadDb(InputStream input) throws IOException {
+	BufferedInputStream bufInput = new BufferedInputStream(input);
+	byte[] header = new byte[BINARY_MAGIC.length];
+	bufInput.mark(header.length);
+	int count = bufInput.readNBytes(header, 0, header.length);
+	bufInput.reset();
+
+	if (count == header.length && Arrays.equals(header, BINARY_MAGIC))
+	    return loadBinary(bufInput);
+	return loadJson(bufInput);
+    }
+
+    private boolean saveDb(OutputStream output, Collection<User> savedUsers) throws IOException {
+	return (format == Format.BINARY) ? saveBinary(output, savedUsers) : saveJson(output, savedUsers);
+    }
+
+    private boolean loadJson(InputStream input) throws IOException {
+	try (JsonParser parser = jsonFactory.createParser(input)) {
+	    if (parser.nextToken() != JsonToken.START_OBJECT) {
+		System.out.format("Неверный формат файла %s!\n", db.getFile().getName());
+		return false;
+	    }
+	    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+		User user = new User(parser.currentName(), "");
+		parser.nextToken();
+		loadJsonUser(parser, user);
+		users.put(user.getLogin(), user);
+	    }
+	    return true;
 	} catch (JsonProcessingException e) {
 	    e.printStackTrace();
 	}
 	return false;
     }
 
+    private void loadJsonUser(JsonParser parser, User user) throws IOException {
+	while (parser.nextToken() == JsonToken.FIELD_NAME) {
+	    String fieldName = parser.currentName();
+	    parser.nextToken();
+	    switch (fieldName) {
+	    case "password":
+		user.password = parser.getText();
+		break;
+	    case "lsn":
+		user.lsn = parser.getLongValue();
+		snapshotLsn = Math.max(snapshotLsn, user.lsn);
+		break;
+	    case "revenue":
+		while (parser.nextToken() == JsonToken.FIELD_NAME) {
+		    String revName = parser.currentName();
+		    parser.nextToken();
+		    user.addIncome(new CashCategory(revName, parseValue(parser)));
+		}
+		break;
+	    case "spending":
+		while (parser.nextToken() == JsonToken.FIELD_NAME) {
+		    String spName = parser.currentName();
+		    parser.nextToken();
+		    user.addOutcome(new CashCategory(spName, parseValue(parser)));
+		}
+		break;
+	    default:
+		parser.skipChildren();
+	    }
+	}
+    }
+
+    private boolean saveJson(OutputStream output, Collection<User> savedUsers) throws IOException {
+	// moneyBuffer общий для фонового сохранения и экспорта
+	synchronized (moneyBuffer) {
+	    try (JsonGenerator generator = jsonFactory.createGenerator(output)) {
+		generator.writeStartObject();
+		for (var user : savedUsers) {
+		    user.lock.lock();
+		    try {
+			generator.writeFieldName(user.getLogin());
+			user.writeJson(generator);
+		    } finally {
+			user.lock.unlock();
+		    }
+		}
+		generator.writeEndObject();
+	    }
+	}
+	return true;
+    }
+
+    /*
+     * Бинарный формат: "CASH", версия, число пользователей, далее для каждого
+     * пользователя логин, пароль, LSN (с версии 3), число категорий доходов и сами
+     * категории, число категорий расходов и сами категории. Строки - длина и байты
+     * UTF-8, суммы - long в копейках (в версии 1 - double в рублях).
+     */
+    private boolean loadBinary(InputStream input) throws IOException {
+	DataInputStream dataInput = new DataInputStream(input);
+	dataInput.readFully(new byte[BINARY_MAGIC.length]);
+	int version = dataInput.readInt();
+	if (version < 1 || version > BINARY_VERSION) {
+	    System.out.format("Неподдерживаемая версия %d файла %s!\n", version, db.getFile().getName());
+	    return false;
+	}
+
+	int userNumber = dataInput.readInt();
+	for (int i = 0; i < userNumber; ++i) {
+	    User user = readBinaryUser(dataInput, version);
+	    users.put(user.getLogin(), user);
+	}
+	return true;
+    }
+
+    private boolean saveBinary(OutputStream output, Collection<User> savedUsers) throws IOException {
+	DataOutputStream dataOutput = new DataOutputStream(output);
+	dataOutput.write(BINARY_MAGIC);
+	dataOutput.writeInt(BINARY_VERSION);
+	dataOutput.writeInt(savedUsers.size());
+	for (var user : savedUsers) {
+	    user.lock.lock();
+	    try {
+		writeBinaryUser(dataOutput, user);
+	    } finally {
+		user.lock.unlock();
+	    }
+	}
+	dataOutput.flush();
+	return true;
+    }
+
+    protected User readBinaryUser(DataInputStream input, int version) throws IOException {
+	User user = new User(readBinaryStr(input), readBinaryStr(input));
+	if (version >= 3) {
+	    user.lsn = input.readLong();
+	    snapshotLsn = Math.max(snapshotLsn, user.lsn);
+	}
+	int revNumber = input.readInt();
+	for (int j = 0; j < revNumber; ++j) {
+	    user.addIncome(new CashCategory(readBinaryStr(input), readBinaryValue(input, version)));
+	}
+	int spNumber = input.readInt();
+	for (int j = 0; j < spNumber; ++j) {
+	    user.addOutcome(new CashCategory(readBinaryStr(input), readBinaryValue(input, version)));
+	}
+	return user;
+    }
+
+    private long readBinaryValue(DataInputStream input, int version) throws IOException {
+	return (version == 1) ? Math.round(input.readDouble() * 100) : input.readLong();
+    }
+
+    protected void writeBinaryUser(DataOutputStream output, User user) throws IOException {
+	writeBinaryStr(output, user.login);
+	writeBinaryStr(output, user.password);
+	output.writeLong(user.lsn);
+	output.writeInt(user.revenue.size());
+	for (var rev : user.revenue.values()) {
+	    writeBinaryStr(output, rev.getName());
+	    output.writeLong(rev.getValue());
+	}
+	output.writeInt(user.spending.size());
+	for (var sp : user.spending.values()) {
+	    writeBinaryStr(output, sp.getName());
+	    output.writeLong(sp.getValue());
+	}
+    }
+
+    protected String readBinaryStr(DataInputStream input) throws IOException {
+	byte[] bytes = new byte[input.readInt()];
+	input.readFully(bytes);
+	return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    protected void writeBinaryStr(DataOutputStream output, String str) throws IOException {
+	byte[] bytes = str.getBytes(StandardCharsets.UTF_8);
+	output.writeInt(bytes.length);
+	output.write(bytes);
+    }
+
+    private long parseValue(JsonParser parser) throws IOException {
+	// Значения могли быть сохранены с локалью, где разделитель - запятая; Money допускает оба
+	return Money.parse(parser.getTextCharacters(), parser.getTextOffset(), parser.getTextLength());
+    }
+
 }
@@ -0,0 +1,504 @@
+package sf.hrechko.cash;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+ * Журнал изменений БД пользователей. Каждая операция дописывается в конец
+ * текущего сегмента <журнал>.<номер> отдельной строкой:
+ *   LSN\tOPERATION\tарг1\tарг2...\n
+ * LSN - сквозной номер записи. Последний аргумент денежных операций - отметка
+ * времени записи в Ledger, удаление категории перед ней хранит удалённую сумму.
+ * В записях старых версий (единый файл <журнал>) нет ни LSN, ни отметки времени.
+ *
+ * Контрольная точка переключает журнал на новый сегмент (roll), сохраняет снимок
+ * БД и удаляет сегменты, которые снимок уже покрывает (compact). При запуске
+ * читаются только оставшиеся сегменты.
+ *
+ * Групповая фиксация: записи параллельных вызовов собираются в одну группу,
+ * которая пишется и сбрасывается на диск одним force(). Первый ожидающий вызов
+ * фиксирует группу целиком, остальные ждут только фиксации своей группы. Пока
+ * идёт запись, следующие записи копятся в новой группе; перед записью можно
+ * подождать ещё записей, но не дольше maxWait и не больше maxBatch записей.
+ *
+ * Если запись группы или force() завершились ошибкой, ошибку получают все вызовы
+ * этой группы, а журнал больше не принимает записей до повторного открытия:
+ * после неудачного force() неизвестно, что из ранее записанного дошло до диска,
+ * и повторная попытка не даёт гарантий.
+ */
+public class UserJournal {
+
+    public enum Operation {
+	ADD_USER(2, 2), INCOME(3, 4), OUTCOME(3, 4), DELETE_INCOME(2, 4), DELETE_OUTCOME(2, 4), TRANSFER(3, 4);
+
+	private int minArgsNumber;
+	private int argsNumber;
+
+	Operation(int minArgsNumber, int argsNumber) {
+	    this.minArgsNumber = minArgsNumber;
+	    this.argsNumber = argsNumber;
+	}
+
+	int getMinArgsNumber() {
+	    return minArgsNumber;
+	}
+
+	int getArgsNumber() {
+	    return argsNumber;
+	}
+    }
+
+    /* Запись журнала для пакетного добавления */
+    public static class Entry {
+	private Operation op;
+	private Object[] args;
+
+	public Entry(Operation op, Object... args) {
+	    this.op = op;
+	    this.args = args;
+	}
+    }
+
+    /* Статистика групповой фиксации */
+    public static class CommitStats {
+	private long commits;
+	private long entries;
+	private long maxEntries;
+	private long nanos;
+	private long maxNanos;
+
+	public long getCommits() {
+	    return commits;
+	}
+
+	public long getEntries() {
+	    return entries;
+	}
+
+	public long getMaxEntries() {
+	    return maxEntries;
+	}
+
+	public double getAverageEntries() {
+	    return (commits > 0) ? (double) entries / commits : 0;
+	}
+
+	public long getMaxMicros() {
+	    return TimeUnit.NANOSECONDS.toMicros(maxNanos);
+	}
+
+	public double getAverageMicros() {
+	    return (commits > 0) ? nanos / 1e3 / commits : 0;
+	}
+
+	@Override
+	public String toString() {
+	    return String.format("фиксаций: %d, записей в группе: в среднем %.1f, максимум %d; "
+		    + "время фиксации: в среднем %.0f мкс, максимум %d мкс", commits, getAverageEntries(),
+		    maxEntries, getAverageMicros(), getMaxMicros());
+	}
+    }
+
+    public interface Replayer {
+	public void replay(long lsn, Operation op, String[] args); // lsn == 0 - запись старой версии
+    }
+
+    private final char SEPARATOR = '\t';
+    private final char END_OF_ENTRY = '\n';
+    public static final int DEFAULT_MAX_BATCH = 1024;
+    private File file;
+    private long segment = 0; // номер текущего сегмента
+    private FileChannel channel = null;
+    private AtomicLong lastLsn = new AtomicLong();
+    /* Групповая фиксация */
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition batchChanged = lock.newCondition();
+    private int maxBatch = DEFAULT_MAX_BATCH;
+    private long maxWaitNanos = 0;
+    private StringBuilder pending = new StringBuilder();
+    private int pendingEntries = 0;
+    private long pendingBatch = 1; // номер собираемой группы
+    private long committedBatch = 0; // номер последней записанной группы
+    private long failedBatch = Long.MAX_VALUE; // первая группа, запись которой не удалась
+    private boolean committing = false;
+    private CommitStats stats = new CommitStats();
+
+    public UserJournal(String filePath) {
+	file = new File(filePath);
+    }
+
+    /* maxBatch - записей в группе, maxWaitMicros - ожидание новых записей перед фиксацией */
+    public void setGroupCommit(int maxBatch, long maxWaitMicros) {
+	lock.lock();
+	try {
+	    this.maxBatch = Math.max(maxBatch, 1);
+	    this.maxWaitNanos = TimeUnit.MICROSECONDS.toNanos(Math.max(maxWaitMicros, 0));
+	} finally {
+	    lock.unlock();
+	}
+    }
+
+    public CommitStats getCommitStats() {
+	lock.lock();
+	try {
+	    CommitStats copy = new CommitStats();
+	    copy.commits = stats.commits;
+	    copy.entries = stats.entries;
+	    copy.maxEntries = stats.maxEntries;
+	    copy.nanos = stats.nanos;
+	    copy.maxNanos = stats.maxNanos;
+	    return copy;
+	} finally {
+	    lock.unlock();
+	}
+    }
+
+    /* Последний выданный LSN */
+    public long getLastLsn() {
+	return lastLsn.get();
+    }
+
+    /* LSN, уже покрытый снимком БД: новые записи получат номера больше него */
+    public void setLastLsn(long lsn) {
+	lastLsn.accumulateAndGet(lsn, Math::max);
+    }
+
+    /* Записи пишутся в новый сегмент, следующий за уже существующими */
+    public boolean open() {
+	List<Long> segments = getSegments();
+	long next = segments.isEmpty() ? 1 : segments.get(segments.size() - 1) + 1;
+	FileChannel segmentChannel = openSegment(next);
+	if (segmentChannel == null)
+	    return false;
+
+	lock.lock();
+	try {
+	    segment = next;
+	    channel = segmentChannel;
+	    failedBatch = Long.MAX_VALUE;
+	} finally {
+	    lock.unlock();
+	}
+	return true;
+    }
+
+    public boolean replay(Replayer replayer) {
+	List<File> files = new ArrayList<>();
+	if (file.exists()) {
+	    files.add(file);
+	}
+	for (long number : getSegments()) {
+	    files.add(getSegmentFile(number));
+	}
+
+	for (var segmentFile : files) {
+	    if (!replay(segmentFile, replayer))
+		return false;
+	}
+	return true;
+    }
+
+    private boolean replay(File segmentFile, Replayer replayer) {
+	try {
+	    String data = new String(Files.readAllBytes(segmentFile.toPath()), StandardCharsets.UTF_8);
+	    int start = 0;
+	    int end;
+	    // Последняя запись без '\n' - оборванная при сбое запись, она отбрасывается
+	    while ((end = data.indexOf(END_OF_ENTRY, start)) >= 0) {
+		String[] fields = data.substring(start, end).split(String.valueOf(SEPARATOR), -1);
+		start = end + 1;
+		long lsn = 0;
+		int first = 0;
+		if (!fields[0].isEmpty() && Character.isDigit(fields[0].charAt(0))) {
+		    try {
+			lsn = Long.parseLong(fields[0]);
+		    } catch (NumberFormatException e) {
+			System.out.format("Повреждённая запись в журнале %s: %s\n", segmentFile.getName(), fields[0]);
+			continue;
+		    }
+		    first = 1;
+		}
+		if (fields.length <= first) {
+		    System.out.format("Повреждённая запись в журнале %s: %d\n", segmentFile.getName(), lsn);
+		    continue;
+		}
+
+		Operation op;
+		try {
+		    op = Operation.valueOf(fields[first]);
+		} catch (IllegalArgumentException e) {
+		    System.out.format("Неизвестная запись в журнале %s: %s\n", segmentFile.getName(), fields[first]);
+		    continue;
+		}
+		int argsNumber = fields.length - first - 1;
+		if (argsNumber < op.getMinArgsNumber() || argsNumber > op.getArgsNumber()) {
+		    System.out.format("Повреждённая запись в журнале %s: %s\n", segmentFile.getName(), fields[first]);
+		    continue;
+		}
+		String[] args = new String[argsNumber];
+		System.arraycopy(fields, first + 1, args, 0, args.length);
+		setLastLsn(lsn);
+		replayer.replay(lsn, op, args);
+	    }
+	    return true;
+	} catch (IOException e) {
+	    e.printStackTrace();
+	}
+	return false;
+    }
+
+    /* Возвращает LSN записи или -1, если запись не сброшена на диск */
+    public long append(Operation op, Object... args) {
+	long lsn = lastLsn.incrementAndGet();
+	StringBuilder entry = new StringBuilder();
+	appendEntry(entry, lsn, op, args);
+	return write(entry, 1) ? lsn : -1;
+    }
+
+    /*
+     * Несколько записей пишутся и сбрасываются на диск за один раз. Возвращает LSN
+     * последней или -1, если записи не сброшены на диск.
+     */
+    public long append(List<Entry> entries) {
+	if (entries.isEmpty())
+	    return lastLsn.get();
+
+	long lsn = lastLsn.getAndAdd(entries.size());
+	StringBuilder text = new StringBuilder();
+	for (var entry : entries) {
+	    appendEntry(text, ++lsn, entry.op, entry.args);
+	}
+	return write(text, entries.size()) ? lsn : -1;
+    }
+
+    private void appendEntry(StringBuilder entries, long lsn, Operation op, Object[] args) {
+	entries.append(lsn).append(SEPARATOR).append(op.name());
+	for (var arg : args) {
+	    entries.append(SEPARATOR).append(arg);
+	}
+	entries.append(END_OF_ENTRY);
+    }
+
+    /*
+     * Возвращается после того, как группа с этими записями сброшена на диск.
+     * false - журнал закрыт или запись группы не удалась.
+     */
+    private boolean write(StringBuilder entries, int count) {
+	boolean interrupted = false;
+	lock.lock();
+	try {
+	    if (channel == null || failedBatch != Long.MAX_VALUE)
+		return false;
+
+	    pending.append(entries);
+	    pendingEntries += count;
+	    long batch = pendingBatch;
+	    if (pendingEntries >= maxBatch) {
+		batchChanged.signalAll();
+	    }
+	    while (committedBatch < batch) {
+		if (committing) {
+		    batchChanged.awaitUninterruptibly();
+		} else {
+		    interrupted |= commit();
+		}
+	    }
+	    return batch < failedBatch;
+	} finally {
+	    lock.unlock();
+	    if (interrupted) {
+		Thread.currentThread().interrupt();
+	    }
+	}
+    }
+
+    /* Вызывается под lock; на время записи lock отпускается. Возвращает true, если поток прерывали */
+    private boolean commit() {
+	boolean interrupted = false;
+	committing = true;
+	try {
+	    if (failedBatch != Long.MAX_VALUE) {
+		// Группы, собранные после неудачной, не пишутся: их вызовы уже получат ошибку
+		committedBatch = pendingBatch++;
+		pending.setLength(0);
+		pendingEntries = 0;
+		return false;
+	    }
+	    long deadline = System.nanoTime() + maxWaitNanos;
+	    long remaining;
+	    while (pendingEntries < maxBatch && (remaining = deadline - System.nanoTime()) > 0) {
+		try {
+		    batchChanged.awaitNanos(remaining);
+		} catch (InterruptedException e) {
+		    interrupted = true;
+		}
+	    }
+
+	    byte[] data = pending.toString().getBytes(StandardCharsets.UTF_8);
+	    int entries = pendingEntries;
+	    long batch = pendingBatch++;
+	    pending.setLength(0);
+	    pendingEntries = 0;
+
+	    FileChannel output = channel; // журнал могли закрыть, пока группа собиралась
+	    boolean written = false;
+	    long start = System.nanoTime();
+	    lock.unlock();
+	    try {
+		written = output != null && writeBatch(output, data);
+	    } finally {
+		lock.lock();
+	    }
+	    long nanos = System.nanoTime() - start;
+
+	    if (!written) {
+		System.out.println("Ошибка записи журнала БД! Изменения не принимаются до перезапуска");
+		failedBatch = Math.min(failedBatch, batch);
+	    }
+	    committedBatch = batch;
+	    stats.commits++;
+	    stats.entries += entries;
+	    stats.maxEntries = Math.max(stats.maxEntries, entries);
+	    stats.nanos += nanos;
+	    stats.maxNanos = Math.max(stats.maxNanos, nanos);
+	} finally {
+	    committing = false;
+	    batchChanged.signalAll();
+	}
+	return interrupted;
+    }
+
+    /* Вызывается без lock из commit() */
+    boolean writeBatch(FileChannel output, byte[] data) {
+	long size = -1;
+	try {
+	    size = output.size();
+	    ByteBuffer buffer = ByteBuffer.wrap(data);
+	    while (buffer.hasRemaining()) {
+		output.write(buffer);
+	    }
+	    output.force(false);
+	    return true;
+	} catch (IOException e) {
+	    e.printStackTrace();
+	}
+	// Отклонённые записи не должны примениться при восстановлении
+	if (size >= 0) {
+	    try {
+		output.truncate(size);
+	    } catch (IOException e) {
+		e.printStackTrace();
+	    }
+	}
+	return false;
+    }
+
+    /* Вызывается под lock: ждёт окончания записи группы */
+    private void awaitCommit() {
+	while (committing) {
+	    batchChanged.awaitUninterruptibly();
+	}
+    }
+
+    /*
+     * Дальнейшие записи идут в новый сегмент. Возвращает его номер: все записи в
+     * сегментах с меньшими номерами уже сброшены на диск. При ошибке - -1.
+     */
+    public long roll() {
+	lock.lock();
+	try {
+	    awaitCommit();
+	    if (channel == null)
+		return -1;
+
+	    FileChannel segmentChannel = openSegment(segment + 1);
+	    if (segmentChannel == null)
+		return -1;
+	    channel.close();
+	    channel = segmentChannel;
+	    return ++segment;
+	} catch (IOException e) {
+	    e.printStackTrace();
+	} finally {
+	    lock.unlock();
+	}
+	return -1;
+    }
+
+    /* Удаляет журнал старой версии и сегменты с номерами меньше before */
+    public boolean compact(long before) {
+	boolean deleted = !file.exists() || file.delete();
+	for (long number : getSegments()) {
+	    if (number < before) {
+		deleted &= getSegmentFile(number).delete();
+	    }
+	}
+	return deleted;
+    }
+
+    public void close() {
+	lock.lock();
+	try {
+	    awaitCommit();
+	    if (channel == null)
+		return;
+	    channel.close();
+	    // Пустой сегмент не нужен при следующем запуске
+	    File segmentFile = getSegmentFile(segment);
+	    if (segmentFile.length() == 0) {
+		segmentFile.delete();
+	    }
+	} catch (IOException e) {
+	    e.printStackTrace();
+	} finally {
+	    channel = null;
+	    lock.unlock();
+	}
+    }
+
+    private File getSegmentFile(long number) {
+	return new File(file.getPath() + "." + number);
+    }
+
+    /* Номера сегментов журнала по возрастанию */
+    private List<Long> getSegments() {
+	List<Long> segments = new ArrayList<>();
+	File dir = file.getAbsoluteFile().getParentFile();
+	String prefix = file.getName() + ".";
+	String[] names = (dir != null) ? dir.list() : null;
+	if (names == null)
+	    return segments;
+
+	for (String name : names) {
+	    if (!name.startsWith(prefix))
+		continue;
+	    try {
+		segments.add(Long.parseLong(name.substring(prefix.length())));
+	    } catch (NumberFormatException e) {
+	    }
+	}
+	segments.sort(null);
+	return segments;
+    }
+
+    private FileChannel openSegment(long number) {
+	try {
+	    return FileChannel.open(getSegmentFile(number).toPath(), StandardOpenOption.CREATE,
+		    StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+	} catch (IOException e) {
+	    e.printStackTrace();
+	}
+	return null;
+    }
+}
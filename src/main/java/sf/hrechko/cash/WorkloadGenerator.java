@@ -0,0 +1,172 @@
+package sf.hrechko.cash;
+
+import java.io.File;
+import java.util.Random;
+
+import sf.hrechko.cash.UserDb.User;
+
+/*
+ * Генератор синтетической БД для нагрузочных проверок. Пользователи user<n> с
+ * паролем, равным логину. Число собственных категорий пользователя и получатели
+ * переводов распределены по закону Ципфа: у большинства пользователей несколько
+ * категорий, у немногих - сотни, а основная часть переводов приходится на
+ * небольшое число популярных получателей. Истории операций (Ledger) у
+ * сгенерированной БД нет, только суммы по категориям.
+ */
+public class WorkloadGenerator {
+
+    private static final String[] INCOME_NAMES = { "Зарплата", "Премия", "Подработка", "Кэшбэк", "Проценты",
+	    "Подарки" };
+    private static final String[] OUTCOME_NAMES = { "Продукты", "Транспорт", "Кафе", "Связь", "Коммуналка", "Одежда",
+	    "Здоровье", "Развлечения" };
+
+    /* Ранги 0..n-1 с вероятностью, пропорциональной 1 / (ранг + 1)^skew */
+    static class Zipf {
+	private double[] cumulative;
+
+	Zipf(int n, double skew) {
+	    cumulative = new double[n];
+	    double total = 0;
+	    for (int i = 0; i < n; ++i) {
+		total += 1 / Math.pow(i + 1, skew);
+		cumulative[i] = total;
+	    }
+	}
+
+	int next(Random random) {
+	    double value = random.nextDouble() * cumulative[cumulative.length - 1];
+	    int low = 0;
+	    int high = cumulative.length - 1;
+	    while (low < high) {
+		int middle = (low + high) >>> 1;
+		if (cumulative[middle] < value) {
+		    low = middle + 1;
+		} else {
+		    high = middle;
+		}
+	    }
+	    return low;
+	}
+    }
+
+    private int userNumber;
+    private int maxCategories = 500;
+    private int transfersPerUser = 5;
+    private double skew = 1.1;
+    private long seed = 1;
+    private long transfers;
+
+    public WorkloadGenerator(int userNumber) {
+	this.userNumber = userNumber;
+    }
+
+    public void setMaxCategories(int maxCategories) {
+	this.maxCategories = Math.max(maxCategories, 1);
+    }
+
+    public void setTransfersPerUser(int transfersPerUser) {
+	this.transfersPerUser = transfersPerUser;
+    }
+
+    public void setSkew(double skew) {
+	this.skew = skew;
+    }
+
+    public void setSeed(long seed) {
+	this.seed = seed;
+    }
+
+    /* Число выполненных переводов последней генерации */
+    public long getTransfers() {
+	return transfers;
+    }
+
+    public static String login(int user) {
+	return "user" + user;
+    }
+
+    static String categoryName(String[] names, int number) {
+	String name = names[number % names.length];
+	return (number < names.length) ? name : name + (number / names.length + 1);
+    }
+
+    /* БД в памяти, без журнала и Ledger: изменения не пишутся на диск */
+    public UserDb generate() {
+	Random random = new Random(seed);
+	UserDb db = new UserDb("generated.db");
+	User[] users = new User[userNumber];
+	Zipf categories = new Zipf(maxCategories, skew);
+	for (int i = 0; i < userNumber; ++i) {
+	    users[i] = db.new User(login(i), login(i));
+	    db.addUser(users[i]);
+	    users[i].setIncome(db.new CashCategory("Пополнение", 2_000_000 + random.nextInt(10_000_000)));
+	    users[i].setOutcome(db.new CashCategory("Снятие", random.nextInt(100_000)));
+	    int count = categories.next(random);
+	    for (int j = 0; j < count; ++j) {
+		if (j % 2 == 0) {
+		    users[i].setIncome(
+			    db.new CashCategory(categoryName(INCOME_NAMES, j / 2), random.nextInt(50_000)));
+		} else {
+		    users[i].setOutcome(
+			    db.new CashCategory(categoryName(OUTCOME_NAMES, j / 2), random.nextInt(5_000)));
+		}
+	    }
+	}
+
+	// Популярные получатели разбросаны по всем пользователям, а не идут подряд
+	int[] byRank = shuffle(userNumber, random);
+	Zipf recipients = new Zipf(userNumber, skew);
+	long requested = (long) userNumber * transfersPerUser;
+	transfers = 0;
+	for (long i = 0; i < requested && userNumber > 1; ++i) {
+	    User from = users[random.nextInt(userNumber)];
+	    User to = users[byRank[recipients.next(random)]];
+	    // Перевод до 1% баланса отправителя
+	    int maxValue = (int) Math.max(Math.min(from.getBalance() / 100, 1_000_000), 1);
+	    // Переводы самому себе пропускаются и не учитываются
+	    if (from != to && db.transfer(from, to, 1 + random.nextInt(maxValue))) {
+		++transfers;
+	    }
+	}
+	return db;
+    }
+
+    /* Случайная перестановка 0..n-1 */
+    static int[] shuffle(int n, Random random) {
+	int[] order = new int[n];
+	for (int i = 0; i < n; ++i) {
+	    order[i] = i;
+	}
+	for (int i = n - 1; i > 0; --i) {
+	    int j = random.nextInt(i + 1);
+	    int swap = order[i];
+	    order[i] = order[j];
+	    order[j] = swap;
+	}
+	return order;
+    }
+
+    /* Записывает БД в новый файл (json, binary) или каталог (sharded) */
+    public boolean write(String path, String format) {
+	if (new File(path).exists()) {
+	    System.out.format("%s уже существует!\n", path);
+	    return false;
+	}
+
+	long start = System.nanoTime();
+	UserDb db = generate();
+	boolean saved;
+	if (format.equals("sharded")) {
+	    ShardedUserDb sharded = new ShardedUserDb(path);
+	    saved = sharded.init() && sharded.importUsers(db);
+	    sharded.close();
+	} else {
+	    saved = db.export(new FileDb(path), format.equals("binary") ? UserDb.Format.BINARY : UserDb.Format.JSON);
+	}
+	if (saved) {
+	    System.out.format("Создано пользователей: %d, переводов: %d за %.1f с\n", userNumber, transfers,
+		    (System.nanoTime() - start) / 1e9);
+	}
+	return saved;
+    }
+}
@@ -0,0 +1,93 @@
+package sf.hrechko.cash;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import sf.hrechko.cash.UserDb.User;
+
+/**
+ * Unit test for FlightEvents.
+ */
+public class FlightEventsTest
+    extends TestCase
+{
+    public FlightEventsTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( FlightEventsTest.class );
+    }
+
+    public void testEvents() throws IOException
+    {
+        File dir = Files.createTempDirectory( "jfr" ).toFile();
+        Path dump = new File( dir, "test.jfr" ).toPath();
+        List<RecordedEvent> events;
+        try ( Recording recording = new Recording() )
+        {
+            recording.enable( "sf.hrechko.cash.Load" );
+            recording.enable( "sf.hrechko.cash.Save" );
+            recording.enable( "sf.hrechko.cash.Operation" );
+            recording.start();
+
+            UserDb db = new UserDb( new File( dir, "users.db" ).getPath() );
+            assertTrue( db.init() );
+            User from = db.new User( "from", "pswd" );
+            User to = db.new User( "to", "pswd" );
+            db.addUser( from );
+            db.addUser( to );
+            from.setIncome( db.new CashCategory( "Пополнение", 1000 ) );
+            assertTrue( db.transfer( from, to, 300 ) );
+            assertFalse( db.transfer( from, to, 3000 ) );
+            db.close();
+
+            recording.stop();
+            recording.dump( dump );
+            events = RecordingFile.readAllEvents( dump );
+        }
+
+        int loads = 0;
+        int saves = 0;
+        int transfers = 0;
+        for ( RecordedEvent event : events )
+        {
+            switch ( event.getEventType().getName() )
+            {
+            case "sf.hrechko.cash.Load":
+                loads++;
+                break;
+            case "sf.hrechko.cash.Save":
+                saves++;
+                assertEquals( 2, event.getInt( "users" ) );
+                assertTrue( event.getLong( "bytes" ) > 0 );
+                assertTrue( event.getBoolean( "saved" ) );
+                break;
+            case "sf.hrechko.cash.Operation":
+                if ( event.getString( "operation" ).equals( "transfer" ) )
+                {
+                    transfers++;
+                    assertEquals( "from", event.getString( "login" ) );
+                    assertEquals( "to", event.getString( "recipient" ) );
+                    assertEquals( event.getLong( "amount" ) == 300, event.getBoolean( "done" ) );
+                }
+                break;
+            default:
+            }
+        }
+        assertEquals( 1, loads );
+        assertEquals( 1, saves );
+        assertEquals( 2, transfers );
+    }
+}
@@ -0,0 +1,168 @@
+package sf.hrechko.cash;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for Ledger.
+ */
+public class LedgerTest
+    extends TestCase
+{
+    // Запись "user"/"Еда" занимает 35 байт: сегмент закрывается после трёх записей
+    private static final long SEGMENT_SIZE = 100;
+    private static final LocalDate START = LocalDate.of( 2026, 3, 1 );
+
+    public LedgerTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( LedgerTest.class );
+    }
+
+    private static long time( int day )
+    {
+        return START.plusDays( day ).atTime( 12, 0 ).atZone( ZoneId.systemDefault() ).toEpochSecond() * 1_000_000;
+    }
+
+    /* Запись за день day (0 - 1 марта) на сумму 100 * (day + 1) */
+    private static Ledger.Entry entry( int day )
+    {
+        return new Ledger.Entry( time( day ), "user", Ledger.Kind.OUTCOME, "Еда", 100 * ( day + 1 ) );
+    }
+
+    private static List<Long> scan( Ledger ledger, long from, long to )
+    {
+        List<Long> amounts = new ArrayList<>();
+        assertTrue( ledger.scan( from, to, entry -> amounts.add( entry.getAmount() ) ) );
+        amounts.sort( null );
+        return amounts;
+    }
+
+    private static long marchOutcome( Ledger ledger )
+    {
+        Long value = ledger.report( "user", START, START.plusDays( 30 ) ).getOutcomes().get( "Еда" );
+        return ( value != null ) ? value : 0;
+    }
+
+    public void testScanByTime() throws IOException
+    {
+        File dir = Files.createTempDirectory( "ledger" ).toFile();
+        Ledger ledger = new Ledger( dir, SEGMENT_SIZE );
+        assertTrue( ledger.open() );
+        for ( int day = 0; day < 10; ++day )
+        {
+            ledger.append( entry( day ) );
+        }
+        ledger.close();
+        // Дни 0-2, 3-5, 6-8 в закрытых сегментах, день 9 - в текущем
+        for ( int segment = 0; segment < 4; ++segment )
+        {
+            assertTrue( new File( dir, segment + ".seg" ).exists() );
+        }
+
+        Ledger reopened = new Ledger( dir, SEGMENT_SIZE );
+        assertTrue( reopened.open() );
+        assertEquals( List.of( 400L, 500L, 600L ), scan( reopened, time( 3 ), time( 6 ) ) );
+        assertEquals( 10, scan( reopened, 0, Long.MAX_VALUE ).size() );
+
+        // По индексу читаются только сегменты, пересекающиеся с периодом
+        assertTrue( new File( dir, "0.seg" ).delete() );
+        assertTrue( new File( dir, "1.seg" ).delete() );
+        assertEquals( List.of( 700L, 800L, 900L, 1000L ), scan( reopened, time( 6 ), time( 10 ) ) );
+        assertEquals( 5500, marchOutcome( reopened ) );
+        reopened.close();
+    }
+
+    public void testTornTail() throws IOException
+    {
+        File dir = Files.createTempDirectory( "ledger" ).toFile();
+        Ledger ledger = new Ledger( dir, SEGMENT_SIZE );
+        assertTrue( ledger.open() );
+        for ( int day = 0; day < 5; ++day )
+        {
+            ledger.append( entry( day ) );
+            if ( day == 2 )
+                assertTrue( ledger.checkpoint() );
+        }
+        assertTrue( ledger.force() );
+
+        // Состояние на момент сбоя: суммы сохранены контрольной точкой после закрытия
+        // сегмента 0, а последняя запись сегмента 1 оборвана на разных полях
+        for ( int cut : new int[] { 1, 10, 30 } )
+        {
+            File crashed = Files.createTempDirectory( "ledger" ).toFile();
+            for ( File file : dir.listFiles() )
+            {
+                Files.copy( file.toPath(), new File( crashed, file.getName() ).toPath() );
+            }
+            File segment = new File( crashed, "1.seg" );
+            try ( RandomAccessFile file = new RandomAccessFile( segment, "rw" ) )
+            {
+                file.setLength( file.length() - cut );
+            }
+
+            Ledger restored = new Ledger( crashed, SEGMENT_SIZE );
+            assertTrue( restored.open() );
+            // Оборванная запись отрезана, целая осталась
+            assertEquals( 35, segment.length() );
+            assertEquals( List.of( 100L, 200L, 300L, 400L ), scan( restored, 0, Long.MAX_VALUE ) );
+            assertEquals( 1000, marchOutcome( restored ) );
+
+            // Новая запись дописывается после отрезанной, суммы не учитываются дважды
+            restored.append( entry( 20 ) );
+            restored.close();
+            Ledger reopened = new Ledger( crashed, SEGMENT_SIZE );
+            assertTrue( reopened.open() );
+            assertEquals( List.of( 100L, 200L, 300L, 400L, 2100L ), scan( reopened, 0, Long.MAX_VALUE ) );
+            assertEquals( 3100, marchOutcome( reopened ) );
+            reopened.close();
+        }
+        ledger.close();
+    }
+
+    public void testCheckpointRollups() throws IOException
+    {
+        File dir = Files.createTempDirectory( "ledger" ).toFile();
+        File rollups = new File( dir, "rollups" );
+        Ledger ledger = new Ledger( dir, SEGMENT_SIZE );
+        assertTrue( ledger.open() );
+        for ( int day = 0; day < 4; ++day )
+        {
+            ledger.append( entry( day ) );
+        }
+        // Закрытие сегмента не переписывает суммы
+        assertTrue( new File( dir, "1.seg" ).exists() );
+        assertFalse( rollups.exists() );
+
+        assertTrue( ledger.checkpoint() );
+        assertTrue( rollups.exists() );
+        ledger.append( entry( 4 ) );
+        assertTrue( ledger.force() );
+
+        // Сбой после контрольной точки: записи после неё дочитываются из сегмента один раз
+        File crashed = Files.createTempDirectory( "ledger" ).toFile();
+        for ( File file : dir.listFiles() )
+        {
+            Files.copy( file.toPath(), new File( crashed, file.getName() ).toPath() );
+        }
+        Ledger restored = new Ledger( crashed, SEGMENT_SIZE );
+        assertTrue( restored.open() );
+        assertEquals( 1500, marchOutcome( restored ) );
+        restored.close();
+        ledger.close();
+    }
+}
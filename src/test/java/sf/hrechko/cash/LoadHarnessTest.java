@@ -0,0 +1,96 @@
+package sf.hrechko.cash;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for WorkloadGenerator and LoadHarness.
+ */
+public class LoadHarnessTest
+    extends TestCase
+{
+    public LoadHarnessTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( LoadHarnessTest.class );
+    }
+
+    public void testGenerate()
+    {
+        WorkloadGenerator generator = new WorkloadGenerator( 100 );
+        generator.setMaxCategories( 20 );
+        generator.setTransfersPerUser( 3 );
+        UserDb db = generator.generate();
+
+        long transferredIn = 0;
+        long transferredOut = 0;
+        for ( int i = 0; i < 100; ++i )
+        {
+            UserDb.User user = db.getUser( WorkloadGenerator.login( i ) );
+            assertTrue( user.checkPassword( WorkloadGenerator.login( i ) ) );
+            assertTrue( user.getBalance() > 0 );
+            transferredIn += user.getIncomeByName( "Перевод" ).getValue();
+            transferredOut += user.getOutcomeByName( "Перевод" ).getValue();
+        }
+        assertTrue( transferredIn > 0 );
+        assertEquals( transferredIn, transferredOut );
+        // Учитываются только выполненные переводы, без переводов самому себе
+        assertTrue( generator.getTransfers() > 0 );
+        assertTrue( generator.getTransfers() <= 300 );
+        assertEquals( generator.getTransfers(), db.getMetrics().histogram( Metrics.TRANSFER ).getCount() );
+    }
+
+    public void testGenerateSelfTransfers()
+    {
+        // Среди трёх пользователей часть получателей совпадает с отправителем
+        WorkloadGenerator generator = new WorkloadGenerator( 3 );
+        generator.setMaxCategories( 5 );
+        generator.setTransfersPerUser( 10 );
+        UserDb db = generator.generate();
+
+        assertTrue( generator.getTransfers() < 30 );
+        assertEquals( generator.getTransfers(), db.getMetrics().histogram( Metrics.TRANSFER ).getCount() );
+    }
+
+    public void testRun()
+    {
+        WorkloadGenerator generator = new WorkloadGenerator( 20 );
+        generator.setMaxCategories( 10 );
+        UserDb db = generator.generate();
+        LoadHarness harness = new LoadHarness( db, 2, 30, 5 );
+        ByteArrayOutputStream report = new ByteArrayOutputStream();
+
+        assertTrue( harness.run( new PrintStream( report ) ) );
+        assertEquals( 0, harness.getFailedSessions() );
+        assertEquals( 30, harness.getLatency( LoadHarness.Operation.LOGIN ).getCount() );
+        long operations = 0;
+        for ( LoadHarness.Operation operation : LoadHarness.Operation.values() )
+        {
+            operations += harness.getLatency( operation ).getCount();
+        }
+        assertEquals( 30 * 6, operations );
+    }
+
+    public void testLatencyHistogram()
+    {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for ( long i = 1; i <= 1000; ++i )
+        {
+            histogram.record( i * 1000 );
+        }
+        assertEquals( 1000, histogram.getCount() );
+        assertEquals( 1000000, histogram.getMax() );
+        assertEquals( 500500.0, histogram.getMean(), 0.001 );
+        assertEquals( 500000, histogram.getPercentile( 50 ), 500000 / 16 );
+        assertEquals( 990000, histogram.getPercentile( 99 ), 990000 / 16 );
+        assertEquals( 1000000, histogram.getPercentile( 100 ) );
+    }
+}
@@ -0,0 +1,59 @@
+package sf.hrechko.cash;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for Money.
+ */
+public class MoneyTest
+    extends TestCase
+{
+    public MoneyTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( MoneyTest.class );
+    }
+
+    public void testParse()
+    {
+        assertEquals( 12345, Money.parse( "123.45" ) );
+        assertEquals( 12345, Money.parse( "123,45" ) );
+        assertEquals( 12340, Money.parse( "123.4" ) );
+        assertEquals( 12300, Money.parse( "123" ) );
+        assertEquals( 50, Money.parse( ".5" ) );
+        assertEquals( -150, Money.parse( "-1.5" ) );
+        assertEquals( 1000, Money.parse( "1.0E1" ) );
+        assertEquals( 1235, Money.parse( "12.345" ) );
+    }
+
+    public void testParseError()
+    {
+        for ( String str : new String[] { "", "-", "abc", "1.2.3", "99999999999999999999" } )
+        {
+            try
+            {
+                Money.parse( str );
+                fail( str );
+            }
+            catch ( NumberFormatException e )
+            {
+            }
+        }
+    }
+
+    public void testFormat()
+    {
+        assertEquals( "123.45", Money.toString( 12345 ) );
+        assertEquals( "0.05", Money.toString( 5 ) );
+        assertEquals( "0.00", Money.toString( 0 ) );
+        assertEquals( "-1.50", Money.toString( -150 ) );
+        assertEquals( "-92233720368547758.08", Money.toString( Long.MIN_VALUE ) );
+        assertEquals( Long.MAX_VALUE, Money.parse( Money.toString( Long.MAX_VALUE ) ) );
+    }
+}
@@ -0,0 +1,56 @@
+package sf.hrechko.cash;
+
+import java.time.LocalDate;
+import java.time.ZoneId;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for Rollups.
+ */
+public class RollupsTest
+    extends TestCase
+{
+    public RollupsTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( RollupsTest.class );
+    }
+
+    private static Ledger.Entry entry( LocalDate date, Ledger.Kind kind, String category, long amount )
+    {
+        long time = date.atTime( 12, 0 ).atZone( ZoneId.systemDefault() ).toEpochSecond() * 1_000_000;
+        return new Ledger.Entry( time, "user", kind, category, amount );
+    }
+
+    public void testReport()
+    {
+        Rollups rollups = new Rollups();
+        // по 100 копеек в день с 20 января по 10 апреля
+        for ( LocalDate date = LocalDate.of( 2026, 1, 20 ); !date.isAfter( LocalDate.of( 2026, 4, 10 ) );
+              date = date.plusDays( 1 ) )
+        {
+            rollups.add( entry( date, Ledger.Kind.OUTCOME, "Еда", 100 ) );
+        }
+        rollups.add( entry( LocalDate.of( 2026, 3, 5 ), Ledger.Kind.INCOME, "Зарплата", 5000 ) );
+
+        Rollups.Report march = rollups.report( "user", LocalDate.of( 2026, 3, 1 ), LocalDate.of( 2026, 3, 31 ) );
+        assertEquals( Long.valueOf( 3100 ), march.getOutcomes().get( "Еда" ) );
+        assertEquals( Long.valueOf( 5000 ), march.getIncomes().get( "Зарплата" ) );
+
+        Rollups.Report span = rollups.report( "user", LocalDate.of( 2026, 1, 25 ), LocalDate.of( 2026, 4, 2 ) );
+        assertEquals( Long.valueOf( ( 7 + 28 + 31 + 2 ) * 100 ), span.getOutcomes().get( "Еда" ) );
+
+        Rollups.Report days = rollups.report( "user", LocalDate.of( 2026, 2, 10 ), LocalDate.of( 2026, 2, 12 ) );
+        assertEquals( Long.valueOf( 300 ), days.getOutcomes().get( "Еда" ) );
+
+        assertTrue( rollups.report( "other", LocalDate.of( 2026, 1, 1 ), LocalDate.of( 2026, 12, 31 ) )
+            .getOutcomes().isEmpty() );
+    }
+}
@@ -0,0 +1,87 @@
+package sf.hrechko.cash;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for ScriptRunner.
+ */
+public class ScriptRunnerTest
+    extends TestCase
+{
+    public ScriptRunnerTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( ScriptRunnerTest.class );
+    }
+
+    public void testRun()
+    {
+        String script = "register from pswd\n"
+            + "register to pswd\n"
+            + "refill 10\n"
+            + "# комментарий\n"
+            + "login from pswd\n"
+            + "refill 100,50\n"
+            + "withdraw 20\n"
+            + "withdraw 1000\n"
+            + "withdraw -1000\n"
+            + "refill -5\n"
+            + "refill 0\n"
+            + "transfer to -30\n"
+            + "transfer to 30\n"
+            + "report\n";
+        UserDb db = new UserDb( "test.db" );
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        ScriptRunner runner = new ScriptRunner( db, new PrintStream( output ) );
+
+        assertTrue( runner.run( new BufferedReader( new StringReader( script ) ) ) );
+        assertEquals( 13, runner.getCommands() );
+        // Неположительные суммы отклоняются и не меняют баланс
+        assertEquals( 6, runner.getErrors() );
+        assertEquals( 5050, db.getUser( "from" ).getBalance() );
+        assertEquals( 3000, db.getUser( "to" ).getBalance() );
+    }
+
+    public void testJournalFailure() throws IOException
+    {
+        File full = new File( "/dev/full" );
+        if ( !full.exists() )
+            return;
+        File dir = Files.createTempDirectory( "script" ).toFile();
+        String path = new File( dir, "users.db" ).getPath();
+        UserDb db = new UserDb( path );
+        assertTrue( db.init() );
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        ScriptRunner runner = new ScriptRunner( db, new PrintStream( output, true, StandardCharsets.UTF_8.name() ) );
+        assertTrue( runner.run( new BufferedReader( new StringReader(
+            "register from pswd\nregister to pswd\nlogin from pswd\nrefill 100\n" ) ) ) );
+
+        // Следующий сегмент журнала не записывается: отказ не выдаётся за нехватку средств
+        Files.createSymbolicLink( new File( path + ".journal.2" ).toPath(), full.toPath() );
+        assertTrue( db.checkpoint() );
+        output.reset();
+        assertTrue( runner.run( new BufferedReader( new StringReader(
+            "withdraw 10\ntransfer to 10\nwithdraw 1000\n" ) ) ) );
+        String text = output.toString( StandardCharsets.UTF_8.name() );
+        assertTrue( text.contains( "Строка 1: withdraw 10: ошибка записи журнала БД" ) );
+        assertTrue( text.contains( "Строка 2: transfer to 10: ошибка записи журнала БД" ) );
+        assertTrue( text.contains( "Строка 3: withdraw 1000: недостаточно средств на балансе" ) );
+        assertEquals( 10000, db.getUser( "from" ).getBalance() );
+        db.close();
+    }
+}
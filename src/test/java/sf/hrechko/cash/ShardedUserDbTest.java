@@ -0,0 +1,194 @@
+package sf.hrechko.cash;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import sf.hrechko.cash.UserDb.User;
+
+/**
+ * Unit test for ShardedUserDb.
+ */
+public class ShardedUserDbTest
+    extends TestCase
+{
+    public ShardedUserDbTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( ShardedUserDbTest.class );
+    }
+
+    /* Каталог БД с пользователями a, b, c в шардах 0, 1, 2 */
+    private File createDb() throws IOException
+    {
+        File dir = Files.createTempDirectory( "sharded" ).toFile();
+        ShardedUserDb db = new ShardedUserDb( dir.getPath() );
+        assertTrue( db.init() );
+        for ( String login : new String[] { "a", "b", "c" } )
+        {
+            User user = db.new User( login, "pswd" );
+            db.addUser( user );
+            user.setIncome( db.new CashCategory( "Пополнение", 1000 ) );
+        }
+        db.close();
+        return dir;
+    }
+
+    public void testLazyLoad() throws IOException
+    {
+        File dir = createDb();
+        ShardedUserDb db = new ShardedUserDb( dir.getPath() );
+        assertTrue( db.init() );
+        // После запуска известны только логины из индекса
+        assertEquals( 3, db.getLogins().size() );
+        assertTrue( db.users.isEmpty() );
+        assertTrue( db.isUserPresent( "b" ) );
+        assertTrue( db.users.isEmpty() );
+
+        assertEquals( 1000, db.getUser( "b" ).getBalance() );
+        assertEquals( 1, db.users.size() );
+        assertSame( db.getUser( "b" ), db.getUser( "b" ) );
+        assertNull( db.getUser( "unknown" ) );
+        assertEquals( 1, db.users.size() );
+        db.close();
+    }
+
+    public void testSaveChangedShards() throws IOException
+    {
+        File dir = createDb();
+        for ( int shard = 0; shard < 3; ++shard )
+        {
+            assertTrue( new File( dir, shard + ".user" ).setLastModified( 1000 ) );
+        }
+
+        ShardedUserDb db = new ShardedUserDb( dir.getPath() );
+        assertTrue( db.init() );
+        db.getUser( "a" );
+        db.getUser( "b" ).setIncome( db.new CashCategory( "Пополнение", 500 ) );
+        UserDb.Snapshot snapshot = db.takeSnapshot();
+        assertTrue( db.saveUsers( snapshot ) );
+        // В размер снимка входят записанный шард и индекс
+        assertEquals( new File( dir, "1.user" ).length() + new File( dir, "index" ).length(), snapshot.bytes );
+        // Записан только изменённый пользователь, прочитанный без изменений - нет
+        assertEquals( 1000, new File( dir, "0.user" ).lastModified() );
+        assertTrue( new File( dir, "1.user" ).lastModified() != 1000 );
+        assertEquals( 1000, new File( dir, "2.user" ).lastModified() );
+        db.close();
+
+        ShardedUserDb reopened = new ShardedUserDb( dir.getPath() );
+        assertTrue( reopened.init() );
+        assertEquals( 1500, reopened.getUser( "b" ).getBalance() );
+        reopened.close();
+    }
+
+    public void testIndexAfterShards() throws IOException
+    {
+        File dir = createDb();
+        File index = new File( dir, "index" );
+        ShardedUserDb db = new ShardedUserDb( dir.getPath() );
+        assertTrue( db.init() );
+        byte[] savedIndex = Files.readAllBytes( index.toPath() );
+
+        // Шард нового пользователя не записывается: индекс не должен на него ссылаться.
+        // Непустой каталог на месте временного файла не удаляется при ошибке записи
+        File blocker = new File( dir, "3.user.tmp" );
+        File blockerContent = new File( blocker, "file" );
+        assertTrue( blocker.mkdir() );
+        assertTrue( blockerContent.createNewFile() );
+        User user = db.new User( "d", "pswd" );
+        db.addUser( user );
+        user.setIncome( db.new CashCategory( "Пополнение", 700 ) );
+        assertFalse( db.checkpoint() );
+        assertFalse( new File( dir, "3.user" ).exists() );
+        assertTrue( Arrays.equals( savedIndex, Files.readAllBytes( index.toPath() ) ) );
+
+        // Несохранённый пользователь записывается следующим снимком
+        assertTrue( blockerContent.delete() );
+        assertTrue( blocker.delete() );
+        assertTrue( db.checkpoint() );
+        assertTrue( new File( dir, "3.user" ).exists() );
+        db.close();
+
+        ShardedUserDb reopened = new ShardedUserDb( dir.getPath() );
+        assertTrue( reopened.init() );
+        assertEquals( 4, reopened.getLogins().size() );
+        assertEquals( 700, reopened.getUser( "d" ).getBalance() );
+        reopened.close();
+    }
+
+    public void testOldVersionMigration() throws IOException
+    {
+        // Индекс и шарды версии 2: без LSN
+        File dir = Files.createTempDirectory( "sharded" ).toFile();
+        try ( DataOutputStream output = new DataOutputStream( new FileOutputStream( new File( dir, "index" ) ) ) )
+        {
+            output.write( new byte[] { 'C', 'I', 'D', 'X' } );
+            output.writeInt( 2 );
+            output.writeInt( 2 );
+            writeStr( output, "a" );
+            output.writeInt( 0 );
+            writeStr( output, "b" );
+            output.writeInt( 5 );
+        }
+        writeShard( new File( dir, "0.user" ), "a", 1200 );
+        writeShard( new File( dir, "5.user" ), "b", 3400 );
+
+        ShardedUserDb db = new ShardedUserDb( dir.getPath() );
+        assertTrue( db.init() );
+        assertEquals( 1200, db.getUser( "a" ).getBalance() );
+        db.close();
+
+        // Индекс и все шарды переписаны в текущей версии
+        try ( DataInputStream input = new DataInputStream( new FileInputStream( new File( dir, "index" ) ) ) )
+        {
+            input.readFully( new byte[4] );
+            assertEquals( db.BINARY_VERSION, input.readInt() );
+        }
+        ShardedUserDb reopened = new ShardedUserDb( dir.getPath() );
+        assertTrue( reopened.init() );
+        assertTrue( reopened.users.isEmpty() );
+        assertEquals( 1200, reopened.getUser( "a" ).getBalance() );
+        assertEquals( 3400, reopened.getUser( "b" ).getBalance() );
+        assertTrue( reopened.getUser( "b" ).checkPassword( "pswd" ) );
+
+        // Новый пользователь не занимает шард старого
+        User user = reopened.new User( "c", "pswd" );
+        reopened.addUser( user );
+        assertTrue( reopened.checkpoint() );
+        assertTrue( new File( dir, "6.user" ).exists() );
+        reopened.close();
+    }
+
+    private static void writeShard( File file, String login, long income ) throws IOException
+    {
+        try ( DataOutputStream output = new DataOutputStream( new FileOutputStream( file ) ) )
+        {
+            writeStr( output, login );
+            writeStr( output, "pswd" );
+            output.writeInt( 1 );
+            writeStr( output, "Пополнение" );
+            output.writeLong( income );
+            output.writeInt( 0 );
+        }
+    }
+
+    private static void writeStr( DataOutputStream output, String str ) throws IOException
+    {
+        byte[] bytes = str.getBytes( StandardCharsets.UTF_8 );
+        output.writeInt( bytes.length );
+        output.write( bytes );
+    }
+}
@@ -0,0 +1,124 @@
+package sf.hrechko.cash;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import sf.hrechko.cash.UserDb.User;
+
+/**
+ * Unit test for TransactionImporter.
+ */
+public class TransactionImporterTest
+    extends TestCase
+{
+    public TransactionImporterTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( TransactionImporterTest.class );
+    }
+
+    private static File write( File dir, String name, String text ) throws IOException
+    {
+        File file = new File( dir, name );
+        Files.write( file.toPath(), text.getBytes( StandardCharsets.UTF_8 ) );
+        return file;
+    }
+
+    public void testCsv() throws IOException
+    {
+        File dir = Files.createTempDirectory( "import" ).toFile();
+        UserDb db = new UserDb( "test.db" );
+        User user = db.new User( "user", "pswd" );
+        db.addUser( user );
+
+        File csv = write( dir, "bank.csv", "login,category,amount\n"
+            + "user,Зарплата,1000\n"
+            + "user,\"Кафе \"\"Ромашка\"\", центр\",\"-12,50\"\n"
+            + "\n"
+            + "user,Зарплата,abc\n"
+            + "nobody,Зарплата,10\n"
+            + "user,\"Без конца,5\n"
+            + "user,,5\n" );
+        TransactionImporter importer = new TransactionImporter( db, 2 );
+        assertTrue( importer.importFile( csv, TransactionImporter.Format.CSV ) );
+        assertEquals( 2, importer.getImported() );
+        assertEquals( 4, importer.getRejected() );
+        assertEquals( 100000, user.getIncomeByName( "Зарплата" ).getValue() );
+        assertEquals( 1250, user.getOutcomeByName( "Кафе \"Ромашка\", центр" ).getValue() );
+        assertEquals( 98750, user.getBalance() );
+
+        // Номер строки файла, причина и сама строка; строки неизвестных пользователей
+        // отклоняются после разбора блока, поэтому порядок восстанавливается сортировкой
+        List<String> rejected = Files.readAllLines( new File( dir, "bank.csv.rejected" ).toPath(),
+            StandardCharsets.UTF_8 );
+        Collections.sort( rejected );
+        assertEquals( 4, rejected.size() );
+        assertTrue( rejected.get( 0 ).startsWith( "5\tНеверная сумма: abc\t" ) );
+        assertEquals( "6\tпользователь не найден\tnobody,Зарплата,10", rejected.get( 1 ) );
+        assertTrue( rejected.get( 2 ).startsWith( "7\t" ) );
+        assertEquals( "8\tневерная категория\tuser,,5", rejected.get( 3 ) );
+    }
+
+    public void testRejectedFileRemoved() throws IOException
+    {
+        File dir = Files.createTempDirectory( "import" ).toFile();
+        UserDb db = new UserDb( "test.db" );
+        db.addUser( db.new User( "user", "pswd" ) );
+        File csv = write( dir, "bank.csv", "user,Зарплата,1\n" );
+        TransactionImporter importer = new TransactionImporter( db, 1 );
+        assertTrue( importer.importFile( csv, TransactionImporter.Format.CSV ) );
+        assertEquals( 1, importer.getImported() );
+        assertFalse( new File( dir, "bank.csv.rejected" ).exists() );
+    }
+
+    public void testJsonlLineBreakInCategory() throws IOException
+    {
+        File dir = Files.createTempDirectory( "import" ).toFile();
+        String path = new File( dir, "users.db" ).getPath();
+        UserDb db = new UserDb( path );
+        assertTrue( db.init() );
+        User user = db.new User( "user", "pswd" );
+        db.addUser( user );
+
+        File jsonl = write( dir, "bank.jsonl",
+            "{\"login\": \"user\", \"category\": \"Зарплата\", \"amount\": \"300\"}\n"
+            + "{\"login\": \"user\", \"category\": \"Пре\\nмия\", \"amount\": \"50\"}\n"
+            + "{\"login\": \"user\", \"category\": \"Кафе\\r\", \"amount\": \"-5\"}\n"
+            + "{\"login\": \"user\", \"category\": \"Та\\tкси\", \"amount\": \"-5\"}\n" );
+        TransactionImporter importer = new TransactionImporter( db, 1 );
+        assertTrue( importer.importFile( jsonl, TransactionImporter.Format.JSONL ) );
+        assertEquals( 1, importer.getImported() );
+        assertEquals( 3, importer.getRejected() );
+        List<String> rejected = Files.readAllLines( new File( dir, "bank.jsonl.rejected" ).toPath(),
+            StandardCharsets.UTF_8 );
+        assertEquals( 3, rejected.size() );
+        assertTrue( rejected.get( 0 ).startsWith( "2\tневерная категория\t" ) );
+        assertEquals( 30000, user.getBalance() );
+
+        // Журнал, записанный импортом, восстанавливается без повреждённых записей
+        File copyDir = Files.createTempDirectory( "import" ).toFile();
+        for ( File file : dir.listFiles() )
+        {
+            if ( file.getName().startsWith( "users.db" ) && file.isFile() )
+                Files.copy( file.toPath(), new File( copyDir, file.getName() ).toPath() );
+        }
+        UserDb restored = new UserDb( new File( copyDir, "users.db" ).getPath() );
+        assertTrue( restored.init() );
+        User restoredUser = restored.getUser( "user" );
+        assertEquals( 30000, restoredUser.getBalance() );
+        assertEquals( 30000, restoredUser.getIncomeByName( "Зарплата" ).getValue() );
+        restored.close();
+        db.close();
+    }
+}
@@ -0,0 +1,510 @@
+package sf.hrechko.cash;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.util.List;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import sf.hrechko.cash.UserDb.User;
+
+/**
+ * Unit test for UserDb.
+ */
+public class UserDbTest
+    extends TestCase
+{
+    public UserDbTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( UserDbTest.class );
+    }
+
+    public void testRunningBalance()
+    {
+        UserDb db = new UserDb( "test.db" );
+        User user = db.new User( "user", "pswd" );
+        db.addUser( user );
+
+        user.setIncome( db.new CashCategory( "Пополнение", 10000 ) );
+        user.setIncome( db.new CashCategory( "Зарплата", 5000 ) );
+        user.setOutcome( db.new CashCategory( "Снятие", 2500 ) );
+        assertEquals( 12500, user.getBalance() );
+
+        assertFalse( user.withdraw( db.new CashCategory( "Снятие", 20000 ) ) );
+        assertTrue( user.withdraw( db.new CashCategory( "Еда", 500 ) ) );
+        assertEquals( 12000, user.getBalance() );
+
+        user.deleteIncome( db.new CashCategory( "Зарплата" ) );
+        user.deleteOutcome( db.new CashCategory( "Еда" ) );
+        assertEquals( 7500, user.getBalance() );
+        assertTrue( user.checkBalance() );
+    }
+
+    public void testTransfer()
+    {
+        UserDb db = new UserDb( "test.db" );
+        User from = db.new User( "from", "pswd" );
+        User to = db.new User( "to", "pswd" );
+        db.addUser( from );
+        db.addUser( to );
+        from.setIncome( db.new CashCategory( "Пополнение", 1000 ) );
+
+        assertFalse( db.transfer( from, to, 1500 ) );
+        assertTrue( db.transfer( from, to, 400 ) );
+        assertEquals( 600, from.getBalance() );
+        assertEquals( 400, to.getBalance() );
+
+        // Нулевые и отрицательные суммы не переводят деньги ни в одну сторону
+        assertFalse( db.transfer( from, to, 0 ) );
+        assertFalse( db.transfer( from, to, -80 ) );
+        assertFalse( db.transfer( to, from, -80 ) );
+        assertFalse( to.withdraw( db.new CashCategory( "Снятие", -1000 ) ) );
+        assertFalse( to.withdraw( db.new CashCategory( "Снятие", 0 ) ) );
+        assertEquals( 600, from.getBalance() );
+        assertEquals( 400, to.getBalance() );
+    }
+
+    public void testSnapshotReplay() throws IOException
+    {
+        File dir = Files.createTempDirectory( "userdb" ).toFile();
+        String path = new File( dir, "users.db" ).getPath();
+        UserDb db = new UserDb( path );
+        assertTrue( db.init() );
+        User user = db.new User( "user", "pswd" );
+        db.addUser( user );
+        user.setIncome( db.new CashCategory( "Пополнение", 1000 ) );
+
+        // Сегмент журнала, который контрольная точка покроет снимком и удалит
+        File segment = new File( path + ".journal.1" );
+        File copy = new File( dir, "segment.copy" );
+        Files.copy( segment.toPath(), copy.toPath() );
+        assertTrue( db.checkpoint() );
+        assertFalse( segment.exists() );
+        user.setIncome( db.new CashCategory( "Пополнение", 500 ) );
+
+        // Сбой после сохранения снимка, но до удаления сегмента: записи не применяются повторно
+        Files.copy( copy.toPath(), segment.toPath(), StandardCopyOption.REPLACE_EXISTING );
+        UserDb restored = new UserDb( path );
+        assertTrue( restored.init() );
+        assertEquals( 1500, restored.getUser( "user" ).getBalance() );
+
+        restored.getUser( "user" ).setIncome( restored.new CashCategory( "Пополнение", 100 ) );
+        restored.close();
+        UserDb reopened = new UserDb( path );
+        assertTrue( reopened.init() );
+        assertEquals( 1600, reopened.getUser( "user" ).getBalance() );
+        reopened.close();
+    }
+
+    private static File copyDb( File dir ) throws IOException
+    {
+        File copyDir = Files.createTempDirectory( "userdb" ).toFile();
+        for ( File file : dir.listFiles() )
+        {
+            File target = new File( copyDir, file.getName() );
+            if ( file.isDirectory() )
+            {
+                assertTrue( target.mkdir() );
+                for ( File nested : file.listFiles() )
+                {
+                    Files.copy( nested.toPath(), new File( target, nested.getName() ).toPath() );
+                }
+            }
+            else
+            {
+                Files.copy( file.toPath(), target.toPath() );
+            }
+        }
+        return copyDir;
+    }
+
+    public void testReplayLedgerOutOfOrder() throws IOException
+    {
+        File dir = Files.createTempDirectory( "userdb" ).toFile();
+        String path = new File( dir, "users.db" ).getPath();
+        UserDb db = new UserDb( path );
+        assertTrue( db.init() );
+        User user = db.new User( "user", "pswd" );
+        db.addUser( user );
+        user.setIncome( db.new CashCategory( "Пополнение", 100 ) );
+        user.setIncome( db.new CashCategory( "Пополнение", 200 ) );
+
+        // Состояние на момент сбоя; отметка времени берётся до записи в журнал, и при
+        // групповой фиксации запись с более ранней отметкой может оказаться позже
+        File copyDir = copyDb( dir );
+        db.close();
+        File segment = new File( copyDir, "users.db.journal.1" );
+        List<String> lines = Files.readAllLines( segment.toPath(), StandardCharsets.UTF_8 );
+        assertEquals( 3, lines.size() );
+        String first = lines.get( 1 );
+        String second = lines.get( 2 );
+        int firstTime = first.lastIndexOf( '\t' ) + 1;
+        int secondTime = second.lastIndexOf( '\t' ) + 1;
+        lines.set( 1, first.substring( 0, firstTime ) + second.substring( secondTime ) );
+        lines.set( 2, second.substring( 0, secondTime ) + first.substring( firstTime ) );
+        Files.write( segment.toPath(), lines, StandardCharsets.UTF_8 );
+
+        UserDb restored = new UserDb( new File( copyDir, "users.db" ).getPath() );
+        assertTrue( restored.init() );
+        User restoredUser = restored.getUser( "user" );
+        assertEquals( 300, restoredUser.getBalance() );
+        // Операции, уже записанные в Ledger до сбоя, не дописываются повторно
+        assertEquals( 2, restored.getHistory( restoredUser, Instant.EPOCH, Instant.now().plusSeconds( 60 ) ).size() );
+        LocalDate today = LocalDate.now();
+        assertEquals( Long.valueOf( 300 ),
+            restored.getReport( restoredUser, today.minusDays( 1 ), today.plusDays( 1 ) ).getIncomes().get( "Пополнение" ) );
+        restored.close();
+    }
+
+    public void testReplayDeleteToLedger() throws IOException
+    {
+        File dir = Files.createTempDirectory( "userdb" ).toFile();
+        String path = new File( dir, "users.db" ).getPath();
+        UserDb db = new UserDb( path );
+        assertTrue( db.init() );
+        User user = db.new User( "user", "pswd" );
+        db.addUser( user );
+        user.setIncome( db.new CashCategory( "Премия", 500 ) );
+        assertTrue( user.deleteIncome( db.new CashCategory( "Премия" ) ) );
+        // Снимок уже учитывает удаление, журнал ещё не очищен
+        assertTrue( db.saveUsers() );
+
+        // Ledger потерян: операции восстанавливаются из журнала, включая отмену суммы
+        File copyDir = copyDb( dir );
+        db.close();
+        File ledgerDir = new File( copyDir, "users.db.ledger" );
+        for ( File file : ledgerDir.listFiles() )
+        {
+            assertTrue( file.delete() );
+        }
+
+        UserDb restored = new UserDb( new File( copyDir, "users.db" ).getPath() );
+        assertTrue( restored.init() );
+        User restoredUser = restored.getUser( "user" );
+        assertNull( restoredUser.getIncomeByName( "Премия" ) );
+        List<Ledger.Entry> history = restored.getHistory( restoredUser, Instant.EPOCH,
+            Instant.now().plusSeconds( 60 ) );
+        assertEquals( 2, history.size() );
+        assertEquals( 500, history.get( 0 ).getAmount() );
+        assertEquals( -500, history.get( 1 ).getAmount() );
+        restored.close();
+    }
+
+    public void testSnapshotCopiesChanged() throws IOException
+    {
+        File dir = Files.createTempDirectory( "userdb" ).toFile();
+        String path = new File( dir, "users.db" ).getPath();
+        UserDb db = new UserDb( path );
+        assertTrue( db.init() );
+        User changed = db.new User( "changed", "pswd" );
+        User clean = db.new User( "clean", "pswd" );
+        db.addUser( changed );
+        db.addUser( clean );
+        clean.setIncome( db.new CashCategory( "Пополнение", 1000 ) );
+        assertTrue( db.checkpoint() );
+
+        // Копируется только пользователь, изменённый после прошлого снимка
+        changed.setIncome( db.new CashCategory( "Пополнение", 100 ) );
+        UserDb.Snapshot snapshot = db.takeSnapshot();
+        assertEquals( 2, snapshot.users.size() );
+        for ( User user : snapshot.users )
+        {
+            if ( user.equals( "clean" ) )
+                assertSame( clean, user );
+            else
+                assertNotSame( changed, user );
+        }
+        assertTrue( db.changedUsers.isEmpty() );
+
+        // Изменение до записи снимка попадает в снимок вместе с LSN и не применяется дважды
+        clean.setIncome( db.new CashCategory( "Пополнение", 200 ) );
+        assertTrue( db.saveUsers( snapshot ) );
+        assertEquals( new File( path ).length(), snapshot.bytes );
+        File copyDir = Files.createTempDirectory( "userdb" ).toFile();
+        for ( File file : dir.listFiles() )
+        {
+            if ( file.isFile() )
+                Files.copy( file.toPath(), new File( copyDir, file.getName() ).toPath() );
+        }
+        UserDb restored = new UserDb( new File( copyDir, "users.db" ).getPath() );
+        assertTrue( restored.init() );
+        assertEquals( 1200, restored.getUser( "clean" ).getBalance() );
+        assertEquals( 100, restored.getUser( "changed" ).getBalance() );
+        restored.close();
+        db.close();
+    }
+
+    public void testJournalFailure() throws IOException
+    {
+        File full = new File( "/dev/full" );
+        if ( !full.exists() )
+            return;
+        File dir = Files.createTempDirectory( "userdb" ).toFile();
+        String path = new File( dir, "users.db" ).getPath();
+        UserDb db = new UserDb( path );
+        assertTrue( db.init() );
+        User from = db.new User( "from", "pswd" );
+        User to = db.new User( "to", "pswd" );
+        db.addUser( from );
+        db.addUser( to );
+        assertTrue( from.setIncome( db.new CashCategory( "Пополнение", 1000 ) ) );
+
+        // Следующий сегмент журнала не записывается: изменения не применяются
+        Files.createSymbolicLink( new File( path + ".journal.2" ).toPath(), full.toPath() );
+        assertTrue( db.checkpoint() );
+        assertFalse( from.setIncome( db.new CashCategory( "Пополнение", 500 ) ) );
+        assertFalse( from.withdraw( db.new CashCategory( "Снятие", 100 ) ) );
+        assertFalse( db.transfer( from, to, 100 ) );
+        assertFalse( from.deleteIncome( db.new CashCategory( "Пополнение" ) ) );
+        assertFalse( db.addUser( db.new User( "new", "pswd" ) ) );
+        assertFalse( db.isUserPresent( "new" ) );
+        assertEquals( 1000, from.getBalance() );
+        assertEquals( 0, to.getBalance() );
+        assertEquals( 1000, from.getIncomeByName( "Пополнение" ).getValue() );
+        db.close();
+
+        UserDb reopened = new UserDb( path );
+        assertTrue( reopened.init() );
+        assertEquals( 1000, reopened.getUser( "from" ).getBalance() );
+        assertNull( reopened.getUser( "new" ) );
+        reopened.close();
+    }
+
+    public void testMappedRoundTrip() throws IOException
+    {
+        File dir = Files.createTempDirectory( "userdb" ).toFile();
+        for ( UserDb.Format format : UserDb.Format.values() )
+        {
+            String path = new File( dir, "users." + format ).getPath();
+            // Окна по 4 КиБ: снимок занимает несколько окон и не кратен их размеру
+            UserDb db = new UserDb( new MappedFileDb( path, 4096 ) );
+            db.setFormat( format );
+            assertTrue( db.init() );
+            for ( int i = 0; i < 300; ++i )
+            {
+                User user = db.new User( "user" + i, "pswd" );
+                db.addUser( user );
+                user.setIncome( db.new CashCategory( "Пополнение", 1000 + i ) );
+            }
+            db.close();
+            assertTrue( new File( path ).length() > 3 * 4096 );
+            assertTrue( new File( path ).length() % 4096 != 0 );
+
+            // Файл обрезан точно по данным: его читает и обычный FileDb
+            UserDb plain = new UserDb( new FileDb( path ) );
+            plain.setFormat( format );
+            assertTrue( plain.init() );
+            assertEquals( 300, plain.getLogins().size() );
+            plain.close();
+
+            UserDb mapped = new UserDb( new MappedFileDb( path, 4096 ) );
+            mapped.setFormat( format );
+            assertTrue( mapped.init() );
+            assertEquals( 1299, mapped.getUser( "user299" ).getBalance() );
+            mapped.getUser( "user0" ).setIncome( mapped.new CashCategory( "Пополнение", 1 ) );
+            mapped.close();
+
+            UserDb reopened = new UserDb( new MappedFileDb( path, 4096 ) );
+            reopened.setFormat( format );
+            assertTrue( reopened.init() );
+            assertEquals( 1001, reopened.getUser( "user0" ).getBalance() );
+            reopened.close();
+        }
+    }
+
+    public void testBinaryRoundTrip() throws IOException
+    {
+        File dir = Files.createTempDirectory( "userdb" ).toFile();
+        String path = new File( dir, "users.db" ).getPath();
+        UserDb db = new UserDb( path );
+        db.setFormat( UserDb.Format.BINARY );
+        assertTrue( db.init() );
+        User user = db.new User( "пользователь", "пароль" );
+        db.addUser( user );
+        user.setIncome( db.new CashCategory( "Пополнение", 123456789012L ) );
+        user.setIncome( db.new CashCategory( "Зарплата", 5 ) );
+        assertTrue( user.withdraw( db.new CashCategory( "Кафе", 1999 ) ) );
+        db.close();
+
+        try ( DataInputStream input = new DataInputStream( new FileInputStream( path ) ) )
+        {
+            byte[] magic = new byte[4];
+            input.readFully( magic );
+            assertEquals( "CASH", new String( magic, StandardCharsets.US_ASCII ) );
+            assertEquals( db.BINARY_VERSION, input.readInt() );
+        }
+
+        UserDb reopened = new UserDb( path );
+        assertTrue( reopened.init() );
+        User loaded = reopened.getUser( "пользователь" );
+        assertTrue( loaded.checkPassword( "пароль" ) );
+        assertEquals( 123456789012L + 5 - 1999, loaded.getBalance() );
+        assertEquals( 5, loaded.getIncomeByName( "Зарплата" ).getValue() );
+        assertEquals( 1999, loaded.getOutcomeByName( "Кафе" ).getValue() );
+        // Порядок категорий сохраняется
+        assertEquals( "Зарплата", loaded.getIncomeNames()[2] );
+        // LSN снимка (добавление и три операции): записи журнала до него не применяются повторно
+        assertEquals( 4, reopened.snapshotLsn );
+        reopened.close();
+    }
+
+    public void testBinaryOldVersions() throws IOException
+    {
+        File dir = Files.createTempDirectory( "userdb" ).toFile();
+        for ( int version = 1; version < 3; ++version )
+        {
+            String path = new File( dir, "users.v" + version ).getPath();
+            try ( DataOutputStream output = new DataOutputStream( new FileOutputStream( path ) ) )
+            {
+                output.write( new byte[] { 'C', 'A', 'S', 'H' } );
+                output.writeInt( version );
+                output.writeInt( 1 );
+                writeStr( output, "user" );
+                writeStr( output, "pswd" );
+                output.writeInt( 1 );
+                writeStr( output, "Пополнение" );
+                if ( version == 1 )
+                    output.writeDouble( 100.10 );
+                else
+                    output.writeLong( 10010 );
+                output.writeInt( 1 );
+                writeStr( output, "Снятие" );
+                if ( version == 1 )
+                    output.writeDouble( 0.3 );
+                else
+                    output.writeLong( 30 );
+            }
+
+            UserDb db = new UserDb( path );
+            db.setFormat( UserDb.Format.BINARY );
+            assertTrue( db.init() );
+            assertEquals( 0, db.snapshotLsn );
+            User user = db.getUser( "user" );
+            assertTrue( user.checkPassword( "pswd" ) );
+            assertEquals( 9980, user.getBalance() );
+            user.setIncome( db.new CashCategory( "Пополнение", 20 ) );
+            db.close();
+
+            // Снимок переписан в текущей версии
+            try ( DataInputStream input = new DataInputStream( new FileInputStream( path ) ) )
+            {
+                input.readFully( new byte[4] );
+                assertEquals( db.BINARY_VERSION, input.readInt() );
+            }
+            UserDb reopened = new UserDb( path );
+            assertTrue( reopened.init() );
+            assertEquals( 10000, reopened.getUser( "user" ).getBalance() );
+            reopened.close();
+        }
+
+        String path = new File( dir, "users.v99" ).getPath();
+        try ( DataOutputStream output = new DataOutputStream( new FileOutputStream( path ) ) )
+        {
+            output.write( new byte[] { 'C', 'A', 'S', 'H' } );
+            output.writeInt( 99 );
+            output.writeInt( 0 );
+        }
+        assertFalse( new UserDb( path ).init() );
+    }
+
+    private static void writeStr( DataOutputStream output, String str ) throws IOException
+    {
+        byte[] bytes = str.getBytes( StandardCharsets.UTF_8 );
+        output.writeInt( bytes.length );
+        output.write( bytes );
+    }
+
+    public void testRefillMetrics()
+    {
+        UserDb db = new UserDb( "test.db" );
+        User user = db.new User( "user", "pswd" );
+        db.addUser( user );
+        LatencyHistogram refills = db.getMetrics().histogram( Metrics.REFILL );
+
+        // Создание категории и перенос суммы при удалении - не пополнения
+        assertTrue( user.setIncome( db.new CashCategory( "Премия" ) ) );
+        assertTrue( user.setIncome( db.new CashCategory( "Премия", 500 ) ) );
+        assertTrue( user.deleteIncome( db.new CashCategory( "Премия" ) ) );
+        assertTrue( user.setIncome( db.new CashCategory( "Пополнение", 500 ) ) );
+        assertFalse( user.refill( db.new CashCategory( "Пополнение", 0 ) ) );
+        assertFalse( user.refill( db.new CashCategory( "Пополнение", -100 ) ) );
+        assertEquals( 0, refills.getCount() );
+
+        assertTrue( user.refill( db.new CashCategory( "Пополнение", 100 ) ) );
+        assertEquals( 1, refills.getCount() );
+        assertEquals( 600, user.getBalance() );
+    }
+
+    public void testWithdrawMetrics()
+    {
+        UserDb db = new UserDb( "test.db" );
+        User user = db.new User( "user", "pswd" );
+        db.addUser( user );
+        user.refill( db.new CashCategory( "Пополнение", 500 ) );
+        LatencyHistogram withdrawals = db.getMetrics().histogram( Metrics.WITHDRAW );
+
+        // Отклонённые списания учитываются только счётчиком
+        assertFalse( user.withdraw( db.new CashCategory( "Снятие", 1000 ) ) );
+        assertFalse( user.withdraw( db.new CashCategory( "Снятие", 0 ) ) );
+        assertEquals( 0, withdrawals.getCount() );
+        assertEquals( 2, db.getMetrics().getCounter( Metrics.WITHDRAW_REJECTED ) );
+
+        assertTrue( user.withdraw( db.new CashCategory( "Снятие", 200 ) ) );
+        assertEquals( 1, withdrawals.getCount() );
+        assertEquals( 300, user.getBalance() );
+    }
+
+    public void testMetrics() throws JMException
+    {
+        UserDb db = new UserDb( "test.db" );
+        User from = db.new User( "from", "pswd" );
+        User to = db.new User( "to", "pswd" );
+        db.addUser( from );
+        db.addUser( to );
+        from.refill( db.new CashCategory( "Пополнение", 1000 ) );
+
+        assertTrue( db.transfer( from, to, 300 ) );
+        assertFalse( db.transfer( from, to, 3000 ) );
+        assertFalse( from.withdraw( db.new CashCategory( "Снятие", 3000 ) ) );
+        assertNotNull( db.login( "from", "pswd" ) );
+        assertNull( db.login( "from", "wrong" ) );
+
+        assertTrue( db.getMetrics().register( "test.db" ) );
+        try
+        {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName( "sf.hrechko.cash:type=Metrics,name=\"test.db\"" );
+            assertEquals( 1L, server.getAttribute( name, "transferCount" ) );
+            assertEquals( 1L, server.getAttribute( name, "transferRejected" ) );
+            assertEquals( 1L, server.getAttribute( name, "withdrawRejected" ) );
+            assertEquals( 1L, server.getAttribute( name, "loginRejected" ) );
+            assertEquals( 1L, server.getAttribute( name, "refillCount" ) );
+            assertEquals( 2L, server.getAttribute( name, "users" ) );
+            assertTrue( (Double) server.getAttribute( name, "transferMaxMicros" ) > 0 );
+        }
+        finally
+        {
+            db.getMetrics().unregister();
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package sf.hrechko.cash;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for UserJournal.
+ */
+public class UserJournalTest
+    extends TestCase
+{
+    public UserJournalTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( UserJournalTest.class );
+    }
+
+    public void testGroupCommit() throws IOException, InterruptedException
+    {
+        File file = new File( Files.createTempDirectory( "journal" ).toFile(), "users.db.journal" );
+        UserJournal journal = new UserJournal( file.getPath() );
+        journal.setGroupCommit( 8, 1000 );
+        assertTrue( journal.open() );
+
+        Thread[] threads = new Thread[8];
+        for ( int i = 0; i < threads.length; ++i )
+        {
+            String login = "user" + i;
+            threads[i] = new Thread( () -> {
+                for ( int j = 0; j < 50; ++j )
+                {
+                    journal.append( UserJournal.Operation.INCOME, login, "Пополнение", "1.00" );
+                }
+            } );
+            threads[i].start();
+        }
+        for ( Thread thread : threads )
+        {
+            thread.join();
+        }
+        journal.close();
+
+        UserJournal.CommitStats stats = journal.getCommitStats();
+        assertEquals( 400, stats.getEntries() );
+        assertTrue( stats.getMaxEntries() <= 8 );
+
+        // Каждая запись получила свой LSN
+        Set<Long> lsns = ConcurrentHashMap.newKeySet();
+        UserJournal replayed = new UserJournal( file.getPath() );
+        assertTrue( replayed.replay( ( lsn, op, args ) -> lsns.add( lsn ) ) );
+        assertEquals( 400, lsns.size() );
+        assertEquals( 400, replayed.getLastLsn() );
+    }
+
+    public void testWriteFailure() throws IOException, InterruptedException
+    {
+        // Запись в /dev/full завершается ошибкой ENOSPC
+        File full = new File( "/dev/full" );
+        if ( !full.exists() )
+            return;
+        File file = new File( Files.createTempDirectory( "journal" ).toFile(), "users.db.journal" );
+        UserJournal journal = new UserJournal( file.getPath() );
+        journal.setGroupCommit( 8, 10000 );
+        assertTrue( journal.open() );
+        assertEquals( 1, journal.append( UserJournal.Operation.ADD_USER, "user", "pswd" ) );
+
+        Files.createSymbolicLink( new File( file.getPath() + ".2" ).toPath(), full.toPath() );
+        assertEquals( 2, journal.roll() );
+
+        // Ошибку получают все вызовы группы
+        long[] lsns = new long[4];
+        Thread[] threads = new Thread[lsns.length];
+        for ( int i = 0; i < threads.length; ++i )
+        {
+            int index = i;
+            threads[i] = new Thread( () -> lsns[index] = journal.append( UserJournal.Operation.INCOME, "user",
+                "Пополнение", "1.00" ) );
+            threads[i].start();
+        }
+        for ( Thread thread : threads )
+        {
+            thread.join();
+        }
+        for ( long lsn : lsns )
+        {
+            assertEquals( -1, lsn );
+        }
+        // После ошибки журнал не принимает записей
+        assertEquals( -1, journal.append( UserJournal.Operation.ADD_USER, "other", "pswd" ) );
+        journal.close();
+
+        // Закрытый журнал тоже не принимает записей
+        assertEquals( -1, journal.append( UserJournal.Operation.ADD_USER, "other", "pswd" ) );
+    }
+
+    public void testQueuedBatchAfterFailure() throws IOException, InterruptedException
+    {
+        File file = new File( Files.createTempDirectory( "journal" ).toFile(), "users.db.journal" );
+        CountDownLatch writing = new CountDownLatch( 1 );
+        CountDownLatch release = new CountDownLatch( 1 );
+        AtomicInteger batches = new AtomicInteger();
+        // Первая группа после открытия не записывается, следующие записались бы успешно
+        UserJournal journal = new UserJournal( file.getPath() )
+        {
+            @Override
+            boolean writeBatch( FileChannel output, byte[] data )
+            {
+                if ( batches.incrementAndGet() > 1 )
+                    return super.writeBatch( output, data );
+                writing.countDown();
+                try
+                {
+                    release.await();
+                }
+                catch ( InterruptedException e )
+                {
+                    Thread.currentThread().interrupt();
+                }
+                return false;
+            }
+        };
+        journal.setGroupCommit( 8, 0 );
+        assertTrue( journal.open() );
+
+        long[] lsns = new long[2];
+        Thread failed = new Thread( () -> lsns[0] = journal.append( UserJournal.Operation.ADD_USER, "a", "pswd" ) );
+        failed.start();
+        assertTrue( writing.await( 10, TimeUnit.SECONDS ) );
+        // Вторая запись копится в следующей группе, пока пишется первая
+        Thread queued = new Thread( () -> lsns[1] = journal.append( UserJournal.Operation.ADD_USER, "b", "pswd" ) );
+        queued.start();
+        Thread.sleep( 100 );
+        release.countDown();
+        failed.join();
+        queued.join();
+        journal.close();
+
+        assertEquals( -1, lsns[0] );
+        assertEquals( -1, lsns[1] );
+        assertEquals( 1, batches.get() );
+        List<String> replayed = new ArrayList<>();
+        UserJournal reopened = new UserJournal( file.getPath() );
+        assertTrue( reopened.replay( ( lsn, op, args ) -> replayed.add( args[0] ) ) );
+        assertTrue( replayed.isEmpty() );
+    }
+}